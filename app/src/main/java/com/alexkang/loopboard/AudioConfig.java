@@ -0,0 +1,118 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.PcmFormat;
+
+/**
+ * The audio format the device's output runs at natively, read once when the app starts. Recording
+ * and playing at the output's own sample rate, in whole bursts, means the system mixer doesn't have
+ * to resample or rebuffer anything on the way out, which is what the low-latency path needs.
+ *
+ * <p>Set up by {@link LoopBoardApplication} before any other thread is started, and never changed
+ * after that.
+ */
+class AudioConfig {
+
+    private static final String TAG = "AudioConfig";
+    private static final int FALLBACK_FRAMES_PER_BURST = 256;
+
+    private static int sampleRateHz = PcmFormat.DEFAULT_SAMPLE_RATE_HZ;
+    private static int framesPerBurst = FALLBACK_FRAMES_PER_BURST;
+    private static int inputBufferSize;
+    private static int outputBufferSize;
+    private static int renderFrames;
+
+    private AudioConfig() {}
+
+    /** Asks the device for its native output format, falling back to 44.1 kHz if it won't say. */
+    static void init(Context context) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        sampleRateHz =
+                readProperty(
+                        audioManager,
+                        AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE,
+                        PcmFormat.DEFAULT_SAMPLE_RATE_HZ);
+        framesPerBurst =
+                readProperty(
+                        audioManager,
+                        AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER,
+                        FALLBACK_FRAMES_PER_BURST);
+
+        int inputBurstSize = framesPerBurst * PcmFormat.BYTES_PER_FRAME;
+        inputBufferSize =
+                roundUp(
+                        AudioRecord.getMinBufferSize(
+                                sampleRateHz,
+                                AudioFormat.CHANNEL_IN_MONO,
+                                AudioFormat.ENCODING_PCM_16BIT),
+                        inputBurstSize);
+        // The output track has to hold at least two blocks, so one is always queued up.
+        int outputBurstSize = framesPerBurst * PcmFormat.BYTES_PER_OUTPUT_FRAME;
+        outputBufferSize =
+                roundUp(
+                        Math.max(
+                                AudioTrack.getMinBufferSize(
+                                        sampleRateHz,
+                                        AudioFormat.CHANNEL_OUT_STEREO,
+                                        AudioFormat.ENCODING_PCM_16BIT),
+                                outputBurstSize * 2),
+                        outputBurstSize);
+        // Mix a burst at a time, unless the track needs so much buffering that bigger blocks of
+        // half the buffer would be written anyway.
+        int outputFrames = outputBufferSize / PcmFormat.BYTES_PER_OUTPUT_FRAME;
+        renderFrames = Math.max(1, outputFrames / 2 / framesPerBurst) * framesPerBurst;
+    }
+
+    /** The rate everything is recorded, mixed and played at. */
+    static int getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    /** How many frames the output hands to the hardware at once. */
+    static int getFramesPerBurst() {
+        return framesPerBurst;
+    }
+
+    /** How many frames the engine mixes for each write to the output track. */
+    static int getRenderFrames() {
+        return renderFrames;
+    }
+
+    /** The output track's buffer, in bytes. A whole number of bursts. */
+    static int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /** The recorder's buffer, in bytes. A whole number of bursts. */
+    static int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    // ------- Private methods -------
+
+    private static int readProperty(AudioManager audioManager, String property, int fallback) {
+        String value = audioManager == null ? null : audioManager.getProperty(property);
+        if (value != null) {
+            try {
+                int parsedValue = Integer.parseInt(value);
+                if (parsedValue > 0) {
+                    return parsedValue;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the fallback.
+            }
+        }
+        Log.e(TAG, String.format("Unable to read %s, assuming %d", property, fallback));
+        return fallback;
+    }
+
+    private static int roundUp(int size, int multiple) {
+        return Math.max(1, (size + multiple - 1) / multiple) * multiple;
+    }
+}
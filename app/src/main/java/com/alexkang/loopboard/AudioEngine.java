@@ -0,0 +1,774 @@
+package com.alexkang.loopboard;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.EffectChain;
+import com.alexkang.loopboard.core.EffectSettings;
+import com.alexkang.loopboard.core.GrainStretcher;
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.PcmMixer;
+import com.alexkang.loopboard.core.PcmStream;
+import com.alexkang.loopboard.core.ReadAheadLoader;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plays every recorded sample through a single streaming {@link AudioTrack}. A dedicated render
+ * thread pulls each active {@link Voice}'s {@link PcmStream}, sums them into a preallocated buffer
+ * and writes it out, so the number of native tracks stays at one no matter how many samples are on
+ * the board.
+ *
+ * <p>The frames written to the track double as the clock for the {@link Transport}. Voices are
+ * started at an exact frame, so quantized loops begin mid-block, right on the boundary.
+ *
+ * <p>Each voice owns a few preallocated {@link Layer}s, each with its own cursor, so triggering a
+ * sample that's still sounding overlaps it rather than cutting it off. When a sample runs out of
+ * layers, or the whole board hits its polyphony limit, the oldest or quietest layer is stolen and
+ * faded out. None of this allocates on the render thread.
+ *
+ * <p>Every voice has its own {@link EffectChain}. Its layers are summed into a float bus, which is
+ * filtered and then panned into the stereo mix. Layers only go through a {@link GrainStretcher}
+ * while their voice's pitch or speed is changed, so a voice with no effects costs about what it did
+ * before there were any.
+ */
+class AudioEngine {
+
+    private static final String TAG = "AudioEngine";
+    // Long enough that a stolen or stopped layer doesn't click, short enough not to be heard.
+    private static final int RELEASE_MILLIS = 2;
+    // Long enough to carry the lowest notes, short enough not to smear attacks.
+    static final int GRAIN_MILLIS = 30;
+
+    // Layer states. Only the render thread changes them.
+    private static final int SILENT = 0;
+    private static final int ACTIVE = 1;
+    private static final int RELEASING = 2;
+
+    /** Which layer to take over when there are no free ones. */
+    enum StealPolicy {
+        OLDEST,
+        QUIETEST
+    }
+
+    private final Object renderLock = new Object();
+    private final AudioTrack audioTrack;
+    private final Thread renderThread;
+    private final Transport transport = new Transport();
+    private final VoicePool voicePool = new VoicePool(Utils.MAX_ACTIVE_SAMPLES);
+    private final ReadAheadLoader readAheadLoader = new ReadAheadLoader();
+    private final Metrics metrics;
+    private final int sampleRateHz = AudioConfig.getSampleRateHz();
+    private final int releaseFrames =
+            (int) PcmFormat.millisToFrames(RELEASE_MILLIS, AudioConfig.getSampleRateHz());
+
+    // Allocated once and reused by the render thread for every block.
+    private final PcmMixer mixer = new PcmMixer(AudioConfig.getRenderFrames());
+    private final short[] mixBuffer =
+            new short[AudioConfig.getRenderFrames() * PcmFormat.OUTPUT_CHANNEL_COUNT];
+    private final short[] readBuffer = new short[AudioConfig.getRenderFrames()];
+    // One layer's frames, and every layer of the voice being mixed summed up for its effects.
+    private final float[] layerBuffer = new float[AudioConfig.getRenderFrames()];
+    private final float[] voiceBus = new float[AudioConfig.getRenderFrames()];
+
+    // Copy-on-write so the render thread can iterate without locking or allocating.
+    private volatile Voice[] voices = new Voice[0];
+    private volatile boolean isRunning = true;
+    private volatile int maxPolyphony = Utils.MAX_POLYPHONY;
+    private volatile StealPolicy stealPolicy = StealPolicy.OLDEST;
+
+    // The frame the next block will start at. Only advanced by the render thread.
+    private volatile long renderPosition = 0;
+    // Frames written since the output track last started, for working out how much is queued.
+    private long framesWritten = 0;
+    // The frame the output track started at, since its own positions count from its last start.
+    private volatile long trackStartFrame = 0;
+    private final AudioTimestamp outputTimestamp = new AudioTimestamp();
+
+    /** A single sample's playback state within the engine. */
+    static class Voice {
+
+        private final AtomicReference<PcmStream[]> pendingStreams = new AtomicReference<>();
+        // The frame to start a new layer at, or -1 if no start is pending.
+        private final AtomicLong pendingStart = new AtomicLong(-1);
+        // Bumped on every stop, so a stop followed quickly by a start isn't missed.
+        private final AtomicInteger stopCount = new AtomicInteger();
+        private volatile boolean isPlaying;
+        private volatile boolean isLooped;
+        private volatile boolean isQuantizedStart;
+        private volatile long startRequestNanos;
+        private volatile EffectSettings effects = EffectSettings.DEFAULT;
+        // When the current loop started, and how long it is, for lining an overdub up with it.
+        private volatile long loopStartFrame;
+        private volatile int loopFrameCount;
+        // One for each layer, allocated the first time the voice is stretched.
+        private volatile GrainStretcher[] stretchers;
+        private final int grainFrames;
+
+        // Only touched by the render thread.
+        private final Layer[] layers;
+        private final EffectChain effectChain;
+        private int handledStopCount = 0;
+        private int soundingLayers = 0;
+        // Whether the bus holds any of this voice's layers for the current block.
+        private boolean isBusDirty = false;
+        // The end of a retaken layer's release that didn't fit in its block, for the next one.
+        private final float[] releaseTail;
+        private int releaseTailLength = 0;
+
+        private Voice(PcmStream stream, int polyphony, int sampleRateHz) {
+            grainFrames = (int) PcmFormat.millisToFrames(GRAIN_MILLIS, sampleRateHz);
+            releaseTail = new float[(int) PcmFormat.millisToFrames(RELEASE_MILLIS, sampleRateHz)];
+            effectChain = new EffectChain(sampleRateHz);
+            layers = new Layer[polyphony];
+            for (int i = 0; i < polyphony; i++) {
+                layers[i] = new Layer(this, i, i == 0 ? stream : stream.duplicate());
+            }
+        }
+
+        boolean isPlaying() {
+            return isPlaying || pendingStart.get() >= 0;
+        }
+
+        boolean isLooping() {
+            return isPlaying && isLooped;
+        }
+
+        /**
+         * Returns how far into the loop the voice was at a frame of the output, or -1 if it wasn't
+         * looping then.
+         */
+        int getLoopPosition(long frame) {
+            long startFrame = loopStartFrame;
+            int frameCount = loopFrameCount;
+            if (!isLooping() || frame < startFrame || frameCount == 0) {
+                return -1;
+            }
+            // A stretched loop moves through the sample at its own speed.
+            return (int) ((long) ((frame - startFrame) * (double) effects.getSpeed()) % frameCount);
+        }
+
+        /**
+         * Replaces the audio for this voice. The render thread swaps it in at the start of its next
+         * block, and playback carries on from the same frame, if any.
+         */
+        void setStream(PcmStream stream) {
+            PcmStream[] streams = new PcmStream[layers.length];
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = i == 0 ? stream : stream.duplicate();
+            }
+            pendingStreams.set(streams);
+        }
+
+        /**
+         * Changes how the voice sounds. The render thread glides over to the new settings from its
+         * next block. The first time the voice is stretched, this allocates, so don't call it from
+         * the audio thread.
+         */
+        void setEffects(EffectSettings effects) {
+            if (effects.isStretched() && stretchers == null) {
+                GrainStretcher[] newStretchers = new GrainStretcher[layers.length];
+                for (int i = 0; i < newStretchers.length; i++) {
+                    newStretchers[i] = new GrainStretcher(grainFrames);
+                }
+                stretchers = newStretchers;
+            }
+            this.effects = effects;
+        }
+    }
+
+    /** One trigger of a voice's sample. Only touched by the render thread. */
+    private static class Layer {
+
+        private final Voice voice;
+        private final int index;
+        private PcmStream stream;
+        private int state = SILENT;
+        private boolean isLooped;
+        private boolean isStretching;
+        // When the layer started, and how loud its last block was, for picking one to steal.
+        private long startFrame;
+        private int peak;
+        private int releaseLength;
+        private int releaseRemaining;
+
+        private Layer(Voice voice, int index, PcmStream stream) {
+            this.voice = voice;
+            this.index = index;
+            this.stream = stream;
+        }
+    }
+
+    AudioEngine(Metrics metrics) {
+        this.metrics = metrics;
+        AudioAttributes attributes =
+                new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build();
+        AudioFormat format =
+                new AudioFormat.Builder()
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRateHz)
+                        .build();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // At the native rate and in whole bursts, this can get a fast track from the mixer.
+            audioTrack =
+                    new AudioTrack.Builder()
+                            .setAudioAttributes(attributes)
+                            .setAudioFormat(format)
+                            .setBufferSizeInBytes(AudioConfig.getOutputBufferSize())
+                            .setTransferMode(AudioTrack.MODE_STREAM)
+                            .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                            .build();
+        } else {
+            audioTrack =
+                    new AudioTrack(
+                            attributes,
+                            format,
+                            AudioConfig.getOutputBufferSize(),
+                            AudioTrack.MODE_STREAM,
+                            AudioManager.AUDIO_SESSION_ID_GENERATE);
+        }
+
+        renderThread = new Thread(this::render, TAG);
+        renderThread.start();
+    }
+
+    /**
+     * Registers a new voice with the engine. The voice stays silent until it is started.
+     *
+     * @param polyphony how many times the voice can sound at once
+     */
+    synchronized Voice addVoice(PcmStream stream, int polyphony) {
+        Voice voice = new Voice(stream, polyphony, sampleRateHz);
+        Voice[] newVoices = new Voice[voices.length + 1];
+        System.arraycopy(voices, 0, newVoices, 0, voices.length);
+        newVoices[voices.length] = voice;
+        voices = newVoices;
+        return voice;
+    }
+
+    /** Stops and unregisters a voice. */
+    synchronized void removeVoice(Voice voice) {
+        stopVoice(voice);
+        for (int i = 0; i < voices.length; i++) {
+            if (voices[i] == voice) {
+                Voice[] newVoices = new Voice[voices.length - 1];
+                System.arraycopy(voices, 0, newVoices, 0, i);
+                System.arraycopy(voices, i + 1, newVoices, i, newVoices.length - i);
+                voices = newVoices;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Works out which frame was coming out of the speaker at a moment in {@link System#nanoTime()}
+     * time, from the output's own timestamps where it has them. Safe to call from any thread.
+     */
+    synchronized long getFrameAt(long nanoTime) {
+        long startFrame = trackStartFrame;
+        if (audioTrack.getTimestamp(outputTimestamp)) {
+            return startFrame
+                    + outputTimestamp.framePosition
+                    + (nanoTime - outputTimestamp.nanoTime) * sampleRateHz / 1000000000L;
+        }
+        // The head position is coarser, but still accounts for everything queued in the track.
+        return startFrame
+                + audioTrack.getPlaybackHeadPosition()
+                + (nanoTime - System.nanoTime()) * sampleRateHz / 1000000000L;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    /** Loads ahead of the voices playing long samples. Only the render thread asks it for loads. */
+    ReadAheadLoader getReadAheadLoader() {
+        return readAheadLoader;
+    }
+
+    /** Shared by every sample, so only the ones in use hold a voice. */
+    VoicePool getVoicePool() {
+        return voicePool;
+    }
+
+    /** Sets how many layers can sound at once across every voice. */
+    void setMaxPolyphony(int maxPolyphony) {
+        this.maxPolyphony = Math.max(1, maxPolyphony);
+    }
+
+    void setStealPolicy(StealPolicy stealPolicy) {
+        this.stealPolicy = stealPolicy;
+    }
+
+    /**
+     * Starts a new layer of a voice from its first frame. One-shots overlap whatever the voice is
+     * already playing, while loops fade everything else out and take over. Loops wait for
+     * the {@link Transport}'s next boundary if another loop is already playing, and otherwise start
+     * the beat grid over from here. {@code requestNanos} is when the start was asked for, which
+     * touch-to-sound latency is measured from.
+     */
+    void startVoice(Voice voice, boolean isLooped, long requestNanos) {
+        long frame = renderPosition;
+        long startFrame = frame;
+        boolean isQuantized = false;
+        if (isLooped) {
+            if (hasOtherLoopingVoice(voice)) {
+                startFrame = transport.getLaunchFrame(frame);
+                isQuantized = transport.getQuantization() != Transport.Quantization.NONE;
+            } else {
+                transport.setOrigin(frame);
+            }
+        }
+
+        voice.isLooped = isLooped;
+        voice.isQuantizedStart = isQuantized;
+        voice.startRequestNanos = requestNanos;
+        voice.pendingStart.set(startFrame);
+        voice.isPlaying = true;
+
+        // Wake up the render thread in case it's idle.
+        synchronized (renderLock) {
+            renderLock.notify();
+        }
+    }
+
+    /** Fades out every layer of a voice. */
+    void stopVoice(Voice voice) {
+        voice.pendingStart.set(-1);
+        voice.isPlaying = false;
+        voice.stopCount.incrementAndGet();
+    }
+
+    void shutdown() {
+        isRunning = false;
+        synchronized (renderLock) {
+            renderLock.notify();
+        }
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        readAheadLoader.shutdown();
+        audioTrack.release();
+    }
+
+    // ------- Render thread -------
+
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        while (isRunning) {
+            long mixStartNanos = System.nanoTime();
+            if (!mixVoices()) {
+                waitForVoices();
+                continue;
+            }
+            metrics.renderBlockMicros.record((System.nanoTime() - mixStartNanos) / 1000);
+
+            if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                audioTrack.play();
+            }
+            if (audioTrack.write(mixBuffer, 0, mixBuffer.length) < 0) {
+                Log.e(TAG, "Failed to write to the output track");
+            }
+            renderPosition += mixer.getBlockFrames();
+            framesWritten += mixer.getBlockFrames();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                metrics.setUnderrunCount(audioTrack.getUnderrunCount());
+            }
+        }
+    }
+
+    /** Park the render thread, and the output track, until a voice is started. */
+    private void waitForVoices() {
+        // Stopping a streaming track still lets whatever we've already written play out.
+        audioTrack.stop();
+        framesWritten = 0;
+        trackStartFrame = renderPosition;
+        synchronized (renderLock) {
+            while (isRunning && !hasPlayingVoice()) {
+                try {
+                    renderLock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean hasPlayingVoice() {
+        for (Voice voice : voices) {
+            if (voice.isPlaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasOtherLoopingVoice(Voice voice) {
+        for (Voice otherVoice : voices) {
+            if (otherVoice != voice && otherVoice.isLooping()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sums one block of every playing voice into {@link #mixBuffer}. A voice that's waiting for its
+     * start frame keeps the block going, so the clock keeps running until it comes around.
+     *
+     * @return whether or not any voice was playing
+     */
+    private boolean mixVoices() {
+        Voice[] currentVoices = voices;
+        long blockStart = renderPosition;
+        boolean isMixing = false;
+
+        mixer.clear();
+        for (Voice voice : currentVoices) {
+            if (mixVoice(currentVoices, voice, blockStart)) {
+                isMixing = true;
+            }
+        }
+        mixer.mixDown(mixBuffer);
+        return isMixing;
+    }
+
+    /**
+     * Mixes one block of every layer of a voice, starting a new layer if one is due this block.
+     *
+     * @return whether or not the voice is sounding or waiting to start
+     */
+    private boolean mixVoice(Voice[] currentVoices, Voice voice, long blockStart) {
+        int blockLength = mixer.getBlockFrames();
+
+        PcmStream[] pendingStreams = voice.pendingStreams.getAndSet(null);
+        if (pendingStreams != null) {
+            for (int i = 0; i < voice.layers.length; i++) {
+                Layer layer = voice.layers[i];
+                pendingStreams[i].seek(layer.stream.getPosition());
+                layer.stream = pendingStreams[i];
+            }
+        }
+
+        int stopCount = voice.stopCount.get();
+        if (stopCount != voice.handledStopCount) {
+            voice.handledStopCount = stopCount;
+            releaseLayers(voice);
+        }
+
+        // A start that comes in while we're looking is picked up next block.
+        int startOffset = blockLength;
+        long startFrame = voice.pendingStart.get();
+        if (startFrame >= 0
+                && startFrame - blockStart < blockLength
+                && voice.pendingStart.compareAndSet(startFrame, -1)) {
+            startOffset = (int) Math.max(0, startFrame - blockStart);
+        }
+
+        mixReleaseTail(voice);
+        // Whatever was playing carries on right up to the start frame.
+        mixLayers(voice, 0, startOffset);
+        if (startOffset < blockLength) {
+            startLayer(currentVoices, voice, blockStart, startOffset);
+            if (voice.isQuantizedStart) {
+                transport.onLaunched(startFrame, blockStart + startOffset);
+            } else {
+                recordTouchToSound(voice, startOffset);
+            }
+            mixLayers(voice, startOffset, blockLength);
+        }
+
+        if (voice.isBusDirty) {
+            voice.effectChain.process(voiceBus, blockLength, voice.effects, mixer);
+            voice.isBusDirty = false;
+        }
+
+        if (voice.soundingLayers > 0) {
+            return true;
+        }
+        // Don't clobber a start that came in while we were mixing.
+        if (voice.pendingStart.get() < 0) {
+            voice.isPlaying = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a layer of a voice part way through the block, taking one over if the voice has none
+     * free or the board is at its polyphony limit.
+     */
+    private void startLayer(
+            Voice[] currentVoices, Voice voice, long blockStart, int startOffset) {
+        int blockLength = mixer.getBlockFrames();
+        if (voice.soundingLayers == 0) {
+            // Nothing is left ringing through the filters, so don't glide in from old settings.
+            voice.effectChain.reset();
+        }
+        if (voice.isLooped) {
+            // A loop takes over from everything else the sample was playing.
+            releaseLayers(voice);
+        }
+
+        Layer layer = findLayer(voice.layers, SILENT);
+        if (layer == null) {
+            // Every layer of this sample is busy. Whichever we take has to finish fading out now,
+            // since its cursor is about to start over. Any of the fade that runs past this block
+            // is rendered ahead and carried into the next one.
+            layer = findLayer(voice.layers, RELEASING);
+            if (layer == null) {
+                layer = findLayerToSteal(voice.layers, null);
+                startRelease(layer, releaseFrames);
+            }
+            mixLayer(layer, startOffset, blockLength);
+            if (layer.state == RELEASING) {
+                Arrays.fill(voice.releaseTail, 0);
+                voice.releaseTailLength =
+                        Math.min(layer.releaseRemaining, voice.releaseTail.length);
+                renderLayer(layer, voice.releaseTail, 0, voice.releaseTailLength);
+            }
+            setLayerState(layer, SILENT);
+        } else if (countActiveLayers(currentVoices) >= maxPolyphony) {
+            // The board is full, so fade another layer out to make room.
+            Layer stolenLayer = null;
+            for (Voice otherVoice : currentVoices) {
+                stolenLayer = findLayerToSteal(otherVoice.layers, stolenLayer);
+            }
+            if (stolenLayer != null) {
+                startRelease(stolenLayer, releaseFrames);
+            }
+        }
+
+        layer.stream.seek(0);
+        // Any stretcher picks up from the top at the layer's first block.
+        layer.isStretching = false;
+        layer.isLooped = voice.isLooped;
+        layer.startFrame = blockStart + startOffset;
+        if (voice.isLooped) {
+            voice.loopFrameCount = layer.stream.getFrameCount();
+            voice.loopStartFrame = layer.startFrame;
+        }
+        // Nothing that's just started counts as quiet.
+        layer.peak = Integer.MAX_VALUE;
+        setLayerState(layer, ACTIVE);
+        voice.isPlaying = true;
+    }
+
+    private void releaseLayers(Voice voice) {
+        for (Layer layer : voice.layers) {
+            if (layer.state == ACTIVE) {
+                startRelease(layer, releaseFrames);
+            }
+        }
+    }
+
+    private void startRelease(Layer layer, int releaseLength) {
+        layer.releaseLength = releaseLength;
+        layer.releaseRemaining = releaseLength;
+        setLayerState(layer, RELEASING);
+    }
+
+    /** Moves a layer to a new state, keeping its voice's count of sounding layers up to date. */
+    private static void setLayerState(Layer layer, int state) {
+        if (layer.state != SILENT) {
+            layer.voice.soundingLayers--;
+        }
+        layer.state = state;
+        if (state != SILENT) {
+            layer.voice.soundingLayers++;
+        }
+    }
+
+    private static Layer findLayer(Layer[] layers, int state) {
+        for (Layer layer : layers) {
+            if (layer.state == state) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the active layer that would be missed least, by the current {@link StealPolicy}.
+     *
+     * @param best the best candidate found so far, if any, to compare against
+     */
+    private Layer findLayerToSteal(Layer[] layers, Layer best) {
+        StealPolicy policy = stealPolicy;
+        for (Layer layer : layers) {
+            if (layer.state != ACTIVE) {
+                continue;
+            }
+            if (best == null
+                    || (policy == StealPolicy.OLDEST && layer.startFrame < best.startFrame)
+                    || (policy == StealPolicy.QUIETEST && layer.peak < best.peak)) {
+                best = layer;
+            }
+        }
+        return best;
+    }
+
+    private static int countActiveLayers(Voice[] currentVoices) {
+        int count = 0;
+        for (Voice voice : currentVoices) {
+            for (Layer layer : voice.layers) {
+                if (layer.state == ACTIVE) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Works out when a voice that was started straight away will actually be heard: the time it
+     * took to get here, plus everything queued ahead of it in the output track.
+     */
+    private void recordTouchToSound(Voice voice, int startOffset) {
+        long queuedFrames =
+                Math.max(0, framesWritten - audioTrack.getPlaybackHeadPosition()) + startOffset;
+        long latencyNanos =
+                System.nanoTime()
+                        - voice.startRequestNanos
+                        + queuedFrames * 1000000000L / sampleRateHz;
+        metrics.touchToSoundMicros.record(latencyNanos / 1000);
+    }
+
+    /** Adds every sounding layer of a voice into the mix between two offsets in the block. */
+    private void mixLayers(Voice voice, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        for (Layer layer : voice.layers) {
+            if (layer.state != SILENT) {
+                mixLayer(layer, from, to);
+            }
+        }
+    }
+
+    /** Adds the end of a release carried over from the last block to the start of the bus. */
+    private void mixReleaseTail(Voice voice) {
+        int length = Math.min(voice.releaseTailLength, mixer.getBlockFrames());
+        if (length == 0) {
+            return;
+        }
+        clearBus(voice);
+        for (int i = 0; i < length; i++) {
+            voiceBus[i] += voice.releaseTail[i];
+        }
+        voice.releaseTailLength -= length;
+        System.arraycopy(voice.releaseTail, length, voice.releaseTail, 0, voice.releaseTailLength);
+    }
+
+    /** Adds a layer's stream into its voice's bus between two offsets in the block. */
+    private void mixLayer(Layer layer, int from, int to) {
+        clearBus(layer.voice);
+        renderLayer(layer, voiceBus, from, to);
+    }
+
+    /** Clears a voice's bus the first time anything is mixed into it in a block. */
+    private void clearBus(Voice voice) {
+        if (!voice.isBusDirty) {
+            Arrays.fill(voiceBus, 0);
+            voice.isBusDirty = true;
+        }
+    }
+
+    /** Adds a layer's stream into {@code bus} between two offsets. */
+    private void renderLayer(Layer layer, float[] bus, int from, int to) {
+        EffectSettings effects = layer.voice.effects;
+        GrainStretcher stretcher = getStretcher(layer, effects);
+
+        PcmStream stream = layer.stream;
+        int frame = from;
+        float peak = 0;
+        while (frame < to && layer.state != SILENT) {
+            int length = Math.min(to - frame, layerBuffer.length);
+            if (layer.state == RELEASING) {
+                length = Math.min(length, layer.releaseRemaining);
+            }
+
+            int framesRead =
+                    stretcher != null
+                            ? stretcher.process(
+                                    stream,
+                                    layer.isLooped,
+                                    effects.getSpeed(),
+                                    effects.getPitchRatio(),
+                                    layerBuffer,
+                                    0,
+                                    length)
+                            : readLayer(stream, length);
+            if (framesRead == 0) {
+                if (!layer.isLooped || layer.state == RELEASING || stream.getFrameCount() == 0) {
+                    setLayerState(layer, SILENT);
+                    break;
+                }
+                stream.seek(0);
+                continue;
+            }
+
+            if (layer.state == RELEASING) {
+                // Ramp down over whatever is left of the release.
+                for (int i = 0; i < framesRead; i++) {
+                    layerBuffer[i] *= (float) (layer.releaseRemaining - i) / layer.releaseLength;
+                }
+                layer.releaseRemaining -= framesRead;
+                if (layer.releaseRemaining == 0) {
+                    setLayerState(layer, SILENT);
+                }
+            }
+            for (int i = 0; i < framesRead; i++) {
+                peak = Math.max(peak, Math.abs(layerBuffer[i]));
+                bus[frame + i] += layerBuffer[i];
+            }
+            frame += framesRead;
+        }
+        layer.peak = (int) peak;
+    }
+
+    /** Reads a layer's stream as it is into {@link #layerBuffer}. */
+    private int readLayer(PcmStream stream, int length) {
+        int framesRead = stream.read(readBuffer, 0, length);
+        for (int i = 0; i < framesRead; i++) {
+            layerBuffer[i] = readBuffer[i];
+        }
+        return framesRead;
+    }
+
+    /**
+     * Returns the stretcher a layer should play through, or null if it should be read as it is.
+     * When the voice's settings switch between the two, the layer carries on from the same place.
+     */
+    private static GrainStretcher getStretcher(Layer layer, EffectSettings effects) {
+        GrainStretcher[] stretchers = layer.voice.stretchers;
+        GrainStretcher stretcher = stretchers == null ? null : stretchers[layer.index];
+        boolean isStretched = stretcher != null && effects.isStretched();
+        if (isStretched != layer.isStretching) {
+            layer.isStretching = isStretched;
+            if (isStretched) {
+                stretcher.reset(layer.stream.getPosition());
+            } else {
+                // Stretchers are never taken away once allocated, so this one's still there.
+                layer.stream.seek(stretchers[layer.index].getSourcePosition());
+            }
+        }
+        return isStretched ? stretcher : null;
+    }
+}
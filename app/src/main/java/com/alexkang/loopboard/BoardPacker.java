@@ -0,0 +1,129 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.BoardPack;
+import com.alexkang.loopboard.core.PcmFiles;
+import com.alexkang.loopboard.core.PeakPyramid;
+import com.alexkang.loopboard.core.SampleCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a {@link BoardPack} of every recorded sample in step with their files, on its own thread,
+ * so the next cold start can open the whole board with one open and one map. The recordings stay
+ * the source of truth: each packed sample remembers the size and modification time of the file it
+ * came from, and anything that doesn't match is loaded from its file as usual.
+ *
+ * <p>Only samples that are ready to play as they are get packed, meaning {@link SampleCodec} at
+ * the output's native rate.
+ */
+class BoardPacker {
+
+    private static final String TAG = "BoardPacker";
+    private static final String PACK_DIR_NAME = "board";
+    private static final String PACK_FILE_NAME = "board.pack";
+    // Room for a full board. A pack keeps the size it was made with, and anything past it just
+    // isn't packed.
+    private static final int PACK_SLOTS = Utils.MAX_SAMPLES;
+
+    private final Context context;
+    private final ExecutorService packExecutor = Executors.newSingleThreadExecutor();
+
+    BoardPacker(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Opens the pack for reading, or returns null if there isn't one yet. Blocks on the disk, so
+     * only call it from a worker thread.
+     */
+    BoardPack open() throws IOException {
+        File packFile = getPackFile();
+        return packFile.exists() ? BoardPack.open(packFile) : null;
+    }
+
+    /**
+     * Packs a recording as it was when it was last loaded. If it's changed since, this does
+     * nothing, since the change will be loaded and packed in turn. Never blocks.
+     */
+    void update(File recordingFile, long expectedLength, long expectedLastModified) {
+        packExecutor.execute(() -> {
+            if (recordingFile.length() != expectedLength
+                    || recordingFile.lastModified() != expectedLastModified) {
+                return;
+            }
+
+            try {
+                ByteBuffer audio = PcmFiles.map(recordingFile);
+                if (!SampleCodec.isEncoded(audio)
+                        || SampleCodec.getSampleRate(audio) != AudioConfig.getSampleRateHz()) {
+                    removeNow(recordingFile.getName());
+                    return;
+                }
+
+                File peaksFile = PeakPyramid.sidecarFor(recordingFile);
+                ByteBuffer peaks =
+                        peaksFile.exists() ? PcmFiles.map(peaksFile) : ByteBuffer.allocate(0);
+                BoardPack.Writer writer = new BoardPack.Writer(getPackFile(), PACK_SLOTS);
+                try {
+                    writer.put(
+                            new BoardPack.Entry(
+                                    recordingFile.getName(),
+                                    BoardPack.FORMAT_SAMPLE_CODEC,
+                                    AudioConfig.getSampleRateHz(),
+                                    0,
+                                    -1,
+                                    expectedLength,
+                                    expectedLastModified),
+                            audio,
+                            peaks);
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Unable to pack %s", recordingFile.getName()));
+            }
+        });
+    }
+
+    /** Drops a recording that's gone from the pack. Never blocks. */
+    void remove(String name) {
+        packExecutor.execute(() -> removeNow(name));
+    }
+
+    /** Finishes any writes already queued, then stops the packing thread. */
+    void shutdown() {
+        packExecutor.shutdown();
+    }
+
+    // ------- Private methods -------
+
+    /** Runs on the packing thread. */
+    private void removeNow(String name) {
+        File packFile = getPackFile();
+        if (!packFile.exists()) {
+            return;
+        }
+        try {
+            BoardPack.Writer writer = new BoardPack.Writer(packFile, PACK_SLOTS);
+            try {
+                writer.remove(name);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Unable to unpack %s", name));
+        }
+    }
+
+    private File getPackFile() {
+        // Kept out of the files directory, which only holds recordings.
+        return new File(context.getDir(PACK_DIR_NAME, Context.MODE_PRIVATE), PACK_FILE_NAME);
+    }
+}
@@ -0,0 +1,166 @@
+package com.alexkang.loopboard;
+
+import android.util.Log;
+
+import com.alexkang.loopboard.core.BounceRenderer;
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.PcmStream;
+import com.alexkang.loopboard.core.WavWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders samples to a WAV file for sharing, without playing them. The bounce is cut into one time
+ * range per core, and each range is rendered by its own {@link BounceRenderer} and written straight
+ * to its place in the file, so a bounce takes a small fraction of its own length.
+ */
+class Bouncer {
+
+    static final int DEFAULT_BARS = 4;
+    static final int MAX_BARS = 64;
+
+    private static final String TAG = "Bouncer";
+    private static final String BOUNCE_DIR_NAME = "Bounces";
+    private static final String BOUNCE_FILE_FORMAT = "bounce-%s.wav";
+    // Big blocks keep the per-block overhead down. Nothing is waiting on them, unlike the output.
+    private static final int BLOCK_FRAMES = 8192;
+
+    private final int sampleRateHz = AudioConfig.getSampleRateHz();
+    private final ExecutorService bounceExecutor = Executors.newSingleThreadExecutor();
+    private final int renderThreadCount = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService renderExecutor =
+            Executors.newFixedThreadPool(renderThreadCount);
+
+    interface BounceCallback {
+        /** Called on a worker thread with the finished file, or with null if the bounce failed. */
+        void onBounced(File bounceFile);
+    }
+
+    /**
+     * Loops the given samples, with their effects, for a number of bars at the transport's tempo.
+     * Samples that are looping now start from where they are, so the bounce sounds like the board
+     * does. The rest start from the top. Never blocks.
+     */
+    void bounce(
+            List<? extends EngineSample> samples,
+            int bars,
+            Transport transport,
+            BounceCallback bounceCallback) {
+        long nowNanos = System.nanoTime();
+        List<EngineSample> bouncedSamples = new ArrayList<>(samples);
+        List<Integer> startFrames = new ArrayList<>();
+        for (EngineSample sample : bouncedSamples) {
+            startFrames.add(Math.max(0, sample.getLoopPositionAt(nowNanos)));
+        }
+        long frameCount =
+                (long) (Math.max(1, Math.min(bars, MAX_BARS))
+                        * transport.getBeatsPerBar()
+                        * 60.0
+                        * sampleRateHz
+                        / transport.getTempoBpm());
+
+        bounceExecutor.execute(() -> {
+            List<BounceRenderer.Track> tracks = new ArrayList<>();
+            for (int i = 0; i < bouncedSamples.size(); i++) {
+                EngineSample sample = bouncedSamples.get(i);
+                PcmStream stream = sample.openOfflineStream();
+                if (stream != null) {
+                    tracks.add(
+                            new BounceRenderer.Track(
+                                    stream, sample.getEffects(), startFrames.get(i)));
+                }
+            }
+            bounceCallback.onBounced(render(tracks, frameCount));
+        });
+    }
+
+    /** Lets any bounce in progress finish, then stops the worker threads. */
+    void shutdown() {
+        bounceExecutor.shutdown();
+        renderExecutor.shutdown();
+    }
+
+    // ------- Private methods -------
+
+    /** Runs on the bounce thread, and waits for the render threads. */
+    private File render(List<BounceRenderer.Track> tracks, long frameCount) {
+        long startNanos = System.nanoTime();
+        File bounceDir = new File(Utils.IMPORTED_SAMPLE_PATH, BOUNCE_DIR_NAME);
+        bounceDir.mkdirs();
+        String timestamp =
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).format(new Date());
+        File bounceFile =
+                new File(bounceDir, String.format(Locale.ENGLISH, BOUNCE_FILE_FORMAT, timestamp));
+
+        WavWriter writer;
+        try {
+            writer =
+                    new WavWriter(
+                            new RandomAccessFile(bounceFile, "rw").getChannel(),
+                            sampleRateHz,
+                            frameCount);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Unable to create %s", bounceFile.getPath()));
+            return null;
+        }
+
+        // Split evenly, but never into ranges shorter than a block.
+        int rangeCount =
+                (int) Math.max(1, Math.min(renderThreadCount, frameCount / BLOCK_FRAMES));
+        List<Future<Void>> ranges = new ArrayList<>();
+        for (int i = 0; i < rangeCount; i++) {
+            long fromFrame = frameCount * i / rangeCount;
+            long toFrame = frameCount * (i + 1) / rangeCount;
+            Callable<Void> range = () -> {
+                new BounceRenderer(
+                                tracks,
+                                sampleRateHz,
+                                BLOCK_FRAMES,
+                                (int) PcmFormat.millisToFrames(
+                                        AudioEngine.GRAIN_MILLIS, sampleRateHz))
+                        .render(fromFrame, toFrame, writer);
+                return null;
+            };
+            ranges.add(renderExecutor.submit(range));
+        }
+
+        boolean isRendered = true;
+        for (Future<Void> range : ranges) {
+            try {
+                range.get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Error while rendering a bounce", e);
+                isRendered = false;
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            isRendered = false;
+        }
+        if (!isRendered) {
+            bounceFile.delete();
+            return null;
+        }
+
+        Log.d(TAG, String.format(
+                Locale.ENGLISH,
+                "Bounced %.1f s in %.1f s on %d threads",
+                PcmFormat.framesToMillis(frameCount, sampleRateHz) / 1000,
+                (System.nanoTime() - startNanos) / 1e9,
+                rangeCount));
+        return bounceFile;
+    }
+}
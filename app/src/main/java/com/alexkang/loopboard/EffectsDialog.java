@@ -0,0 +1,134 @@
+package com.alexkang.loopboard;
+
+import android.annotation.SuppressLint;
+import android.app.AlertDialog;
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.SeekBar;
+
+import com.alexkang.loopboard.core.EffectSettings;
+
+/**
+ * Sliders for a sample's {@link EffectSettings}. Every move hands the sample a new set of settings
+ * straight away, so changes are heard while it plays, and the engine glides over to them.
+ */
+class EffectsDialog {
+
+    // Fine enough steps for the continuous sliders. Pitch moves in whole semitones instead.
+    private static final int SLIDER_STEPS = 100;
+
+    private final Sample sample;
+    private final SeekBar gainSlider;
+    private final SeekBar panSlider;
+    private final SeekBar lowCutSlider;
+    private final SeekBar highCutSlider;
+    private final SeekBar pitchSlider;
+    private final SeekBar speedSlider;
+
+    /** Shows the effects for a sample. UI thread only. */
+    static void show(Context context, Sample sample) {
+        @SuppressLint("InflateParams") View layout =
+                LayoutInflater.from(context).inflate(R.layout.effects_dialog, null);
+        EffectsDialog effectsDialog = new EffectsDialog(layout, sample);
+
+        new AlertDialog.Builder(context)
+                .setTitle(sample.getName())
+                .setView(layout)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> dialog.dismiss())
+                .setNeutralButton(
+                        R.string.effects_reset,
+                        (dialog, which) -> effectsDialog.apply(EffectSettings.DEFAULT))
+                .show();
+    }
+
+    private EffectsDialog(View layout, Sample sample) {
+        this.sample = sample;
+        gainSlider = layout.findViewById(R.id.effect_gain);
+        panSlider = layout.findViewById(R.id.effect_pan);
+        lowCutSlider = layout.findViewById(R.id.effect_low_cut);
+        highCutSlider = layout.findViewById(R.id.effect_high_cut);
+        pitchSlider = layout.findViewById(R.id.effect_pitch);
+        speedSlider = layout.findViewById(R.id.effect_speed);
+
+        gainSlider.setMax(SLIDER_STEPS);
+        panSlider.setMax(SLIDER_STEPS);
+        lowCutSlider.setMax(SLIDER_STEPS);
+        highCutSlider.setMax(SLIDER_STEPS);
+        pitchSlider.setMax((int) (EffectSettings.MAX_PITCH_SEMITONES * 2));
+        speedSlider.setMax(SLIDER_STEPS);
+        showSettings(sample.getEffects());
+
+        SeekBar.OnSeekBarChangeListener listener = new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser) {
+                    sample.setEffects(readSettings());
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+        };
+        gainSlider.setOnSeekBarChangeListener(listener);
+        panSlider.setOnSeekBarChangeListener(listener);
+        lowCutSlider.setOnSeekBarChangeListener(listener);
+        highCutSlider.setOnSeekBarChangeListener(listener);
+        pitchSlider.setOnSeekBarChangeListener(listener);
+        speedSlider.setOnSeekBarChangeListener(listener);
+    }
+
+    // ------- Private methods -------
+
+    private void apply(EffectSettings settings) {
+        sample.setEffects(settings);
+        showSettings(settings);
+    }
+
+    private void showSettings(EffectSettings settings) {
+        gainSlider.setProgress(
+                Math.round(settings.getGain() / EffectSettings.MAX_GAIN * SLIDER_STEPS));
+        panSlider.setProgress(Math.round((settings.getPan() + 1) / 2 * SLIDER_STEPS));
+        lowCutSlider.setProgress(fromCutoff(settings.getLowCutHz()));
+        highCutSlider.setProgress(fromCutoff(settings.getHighCutHz()));
+        pitchSlider.setProgress(
+                Math.round(settings.getPitchSemitones() + EffectSettings.MAX_PITCH_SEMITONES));
+        speedSlider.setProgress(
+                fromLogScale(
+                        settings.getSpeed(), EffectSettings.MIN_SPEED, EffectSettings.MAX_SPEED));
+    }
+
+    private EffectSettings readSettings() {
+        return new EffectSettings(
+                (float) gainSlider.getProgress() / SLIDER_STEPS * EffectSettings.MAX_GAIN,
+                (float) panSlider.getProgress() / SLIDER_STEPS * 2 - 1,
+                toCutoff(lowCutSlider.getProgress()),
+                toCutoff(highCutSlider.getProgress()),
+                pitchSlider.getProgress() - EffectSettings.MAX_PITCH_SEMITONES,
+                toLogScale(
+                        speedSlider.getProgress(),
+                        EffectSettings.MIN_SPEED,
+                        EffectSettings.MAX_SPEED));
+    }
+
+    /** Cutoffs are spread evenly in octaves, since that's how they're heard. */
+    private static float toCutoff(int progress) {
+        return toLogScale(progress, EffectSettings.MIN_CUTOFF_HZ, EffectSettings.MAX_CUTOFF_HZ);
+    }
+
+    private static int fromCutoff(float cutoffHz) {
+        return fromLogScale(
+                cutoffHz, EffectSettings.MIN_CUTOFF_HZ, EffectSettings.MAX_CUTOFF_HZ);
+    }
+
+    private static float toLogScale(int progress, float min, float max) {
+        return (float) (min * Math.pow(max / min, (double) progress / SLIDER_STEPS));
+    }
+
+    private static int fromLogScale(float value, float min, float max) {
+        return (int) Math.round(Math.log(value / min) / Math.log(max / min) * SLIDER_STEPS);
+    }
+}
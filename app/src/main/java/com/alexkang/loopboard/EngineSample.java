@@ -0,0 +1,413 @@
+package com.alexkang.loopboard;
+
+import android.util.Log;
+
+import com.alexkang.loopboard.core.BoardPack;
+import com.alexkang.loopboard.core.EffectSettings;
+import com.alexkang.loopboard.core.PcmFiles;
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.PcmStream;
+import com.alexkang.loopboard.core.PeakPyramid;
+import com.alexkang.loopboard.core.RawPcmStream;
+import com.alexkang.loopboard.core.ReadAheadStream;
+import com.alexkang.loopboard.core.SampleCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * A {@link Sample} that plays through the {@link AudioEngine}. Its audio comes from a
+ * memory-mapped file, decoded on the fly if it was saved with {@link SampleCodec}. While the sample
+ * is in use, the {@link SampleCache} may swap in a fully decoded copy, and the file is swapped back
+ * in once the copy is evicted. Samples too long for that stream from the file instead, through a
+ * {@link ReadAheadStream}, so they only ever hold a few windows in memory however long they are.
+ *
+ * <p>The sample only holds a voice in the engine while it's in use, handing it back to the
+ * {@link VoicePool} once it's gone idle and other samples need one.
+ */
+abstract class EngineSample extends Sample
+        implements SampleCache.CachedSample, VoicePool.PooledSample {
+
+    private static final String TAG = "EngineSample";
+    private static final long MAX_RESIDENT_MILLIS = 30000;
+    private static final long STREAM_WINDOW_MILLIS = 500;
+
+    private final AudioEngine audioEngine;
+    private final SampleCache sampleCache;
+    private final VoicePool voicePool;
+    private final int maxResidentFrames =
+            (int) PcmFormat.millisToFrames(MAX_RESIDENT_MILLIS, AudioConfig.getSampleRateHz());
+    private final int streamWindowFrames =
+            (int) PcmFormat.millisToFrames(STREAM_WINDOW_MILLIS, AudioConfig.getSampleRateHz());
+
+    // Null until the sample is first used, and again whenever the pool reclaims it.
+    private volatile AudioEngine.Voice voice;
+    private volatile ByteBuffer mappedFile;
+    // The cache's decoded copy of the mapped file, if there is one, for the next voice to play.
+    private ShortBuffer residentPcm;
+    // A writable copy that an overdub sums into. It's played in place of the file until the file
+    // is replaced by the overdub's result.
+    private ShortBuffer overdubPcm;
+    private boolean isOverdubbing = false;
+    // Whether an overdub has finished with the copy, which now has to play until it's saved.
+    private boolean isOverdubSaving = false;
+    // The first window of a sample that's too long to keep resident, or null if it isn't.
+    private short[] streamHead;
+    private volatile PeakPyramid peaks;
+    private volatile EffectSettings effects = EffectSettings.DEFAULT;
+
+    EngineSample(AudioEngine audioEngine, SampleCache sampleCache) {
+        this.audioEngine = audioEngine;
+        this.sampleCache = sampleCache;
+        this.voicePool = audioEngine.getVoicePool();
+    }
+
+    @Override
+    void play(boolean isLooped, long requestNanos) {
+        if (!acquireVoice()) {
+            return;
+        }
+        synchronized (this) {
+            if (voice == null) {
+                // Reclaimed before it could start, which only happens with the pool overflowing.
+                return;
+            }
+            sampleCache.onPlay(this);
+            audioEngine.startVoice(voice, isLooped, requestNanos);
+        }
+        notifyPlaybackChanged();
+    }
+
+    @Override
+    void prepare() {
+        acquireVoice();
+    }
+
+    @Override
+    synchronized void stop() {
+        if (voice != null) {
+            audioEngine.stopVoice(voice);
+            notifyPlaybackChanged();
+        }
+    }
+
+    @Override
+    boolean isLooping() {
+        AudioEngine.Voice currentVoice = voice;
+        return currentVoice != null && currentVoice.isLooping();
+    }
+
+    @Override
+    synchronized void shutdown() {
+        sampleCache.remove(this);
+        if (voice != null) {
+            audioEngine.removeVoice(voice);
+            voice = null;
+        }
+        voicePool.onReleased(this);
+    }
+
+    /**
+     * Returns how far into its loop this sample was at a moment in {@link System#nanoTime()} time,
+     * as heard from the speaker, or -1 if it wasn't looping then.
+     */
+    int getLoopPositionAt(long nanoTime) {
+        AudioEngine.Voice currentVoice = voice;
+        return currentVoice == null
+                ? -1
+                : currentVoice.getLoopPosition(audioEngine.getFrameAt(nanoTime));
+    }
+
+    /**
+     * Whether an overdub can sum into this sample. Samples too long to keep resident can't, since
+     * an overdub needs the whole sample decoded in memory.
+     */
+    synchronized boolean canOverdub() {
+        return mappedFile != null && streamHead == null;
+    }
+
+    /**
+     * Swaps in a writable, fully decoded copy of the audio for an overdub to sum into. A copy
+     * that's still waiting to be saved from the last overdub is picked up again. Anything playing
+     * carries on from the same frame. Decodes the whole sample, so only call it from a worker
+     * thread.
+     *
+     * @return the copy, or null if there's no audio to overdub or it's too long to decode
+     */
+    ShortBuffer startOverdub() {
+        ByteBuffer source;
+        synchronized (this) {
+            isOverdubbing = true;
+            if (overdubPcm != null) {
+                return overdubPcm;
+            }
+            if (!canOverdub()) {
+                return null;
+            }
+            source = mappedFile;
+        }
+
+        ShortBuffer pcm = decodeFully(openStream(source));
+        synchronized (this) {
+            if (source != mappedFile) {
+                // A new take came in while we were decoding.
+                return null;
+            }
+            overdubPcm = pcm;
+            refreshStream();
+        }
+        return pcm;
+    }
+
+    /**
+     * Ends an overdub. The copy it summed into keeps playing until the file it's saved to is
+     * loaded in its place.
+     *
+     * @return the copy to save, or null if there isn't one
+     */
+    synchronized ShortBuffer finishOverdub() {
+        isOverdubbing = false;
+        isOverdubSaving = overdubPcm != null;
+        return overdubPcm;
+    }
+
+    /**
+     * Ends an overdub that didn't write anything. Unless the copy is still waiting to be saved from
+     * an earlier overdub, the file takes its place again.
+     */
+    synchronized void cancelOverdub() {
+        isOverdubbing = false;
+        if (overdubPcm != null && !isOverdubSaving) {
+            overdubPcm = null;
+            refreshStream();
+        }
+    }
+
+    /**
+     * Opens a cursor over whatever this sample plays right now, for rendering it offline, or
+     * returns null if it has no audio.
+     */
+    synchronized PcmStream openOfflineStream() {
+        return mappedFile != null ? openDirectStream() : null;
+    }
+
+    /** Returns whether or not this sample has any audio for the engine to play. */
+    boolean hasAudio() {
+        return mappedFile != null;
+    }
+
+    @Override
+    EffectSettings getEffects() {
+        return effects;
+    }
+
+    @Override
+    void setEffects(EffectSettings effects) {
+        // Set before the voice is read, and a new voice is set before the settings are read, so a
+        // voice taken at the same time can't miss them.
+        this.effects = effects;
+        AudioEngine.Voice currentVoice = voice;
+        if (currentVoice != null) {
+            currentVoice.setEffects(effects);
+        }
+    }
+
+    @Override
+    PeakPyramid getPeaks() {
+        return peaks;
+    }
+
+    /**
+     * Points this sample at a new or changed audio file. Anything that's playing carries on from
+     * the same frame.
+     */
+    void setAudioFile(File file) throws IOException {
+        ByteBuffer newMappedFile = PcmFiles.map(file);
+        setAudio(newMappedFile, loadPeaks(file, openStream(newMappedFile)));
+    }
+
+    /**
+     * Points this sample at audio packed in a {@link BoardPack}, along with its waveform. Peaks
+     * that don't match the audio are rebuilt, but only in memory, since the pack isn't ours to
+     * write.
+     */
+    void setPackedAudio(ByteBuffer packedFile, ByteBuffer packedPeaks) {
+        PcmStream stream = openStream(packedFile);
+        PeakPyramid newPeaks;
+        try {
+            newPeaks = PeakPyramid.read(packedPeaks);
+            if (newPeaks.getFrameCount() != stream.getFrameCount()) {
+                newPeaks = PeakPyramid.fromStream(stream);
+            }
+        } catch (IOException e) {
+            newPeaks = PeakPyramid.fromStream(stream);
+        }
+        setAudio(packedFile, newPeaks);
+    }
+
+    /** Reads a mapped sample file, whether it's {@link SampleCodec} or older raw PCM. */
+    static PcmStream openStream(ByteBuffer mappedFile) {
+        if (SampleCodec.isEncoded(mappedFile)) {
+            return new SampleCodec.Decoder(mappedFile);
+        }
+        return new RawPcmStream(
+                mappedFile.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+    }
+
+    // ------- SampleCache.CachedSample -------
+
+    @Override
+    public synchronized ByteBuffer getCacheSource() {
+        // Raw PCM is already as cheap to play as a decoded copy would be, and long samples stream.
+        return mappedFile != null && SampleCodec.isEncoded(mappedFile) && streamHead == null
+                ? mappedFile
+                : null;
+    }
+
+    @Override
+    public boolean isPinned() {
+        AudioEngine.Voice currentVoice = voice;
+        return currentVoice != null && currentVoice.isPlaying();
+    }
+
+    @Override
+    public synchronized void onResidentPcmChanged(ByteBuffer source, ShortBuffer pcm) {
+        if (source != mappedFile) {
+            // The file changed while this copy was being decoded or evicted.
+            return;
+        }
+        residentPcm = pcm;
+        refreshStream();
+    }
+
+    // ------- VoicePool.PooledSample -------
+
+    @Override
+    public void releaseVoice() {
+        synchronized (this) {
+            if (voice == null) {
+                return;
+            }
+            if (voice.isPlaying()) {
+                // Started again since the pool picked it, so it keeps its voice after all.
+                voicePool.onKept(this);
+                return;
+            }
+            audioEngine.removeVoice(voice);
+            voice = null;
+        }
+    }
+
+    // ------- Private methods -------
+
+    /**
+     * Takes a voice from the pool if the sample doesn't hold one yet. The pool is only told after
+     * the sample's lock is released, since it may ask other samples to give theirs back.
+     *
+     * @return whether or not the sample has audio to play
+     */
+    private boolean acquireVoice() {
+        synchronized (this) {
+            if (mappedFile == null) {
+                return false;
+            }
+            if (voice == null) {
+                voice = audioEngine.addVoice(openCurrentStream(), Utils.SAMPLE_POLYPHONY);
+                voice.setEffects(effects);
+            }
+        }
+        voicePool.onAcquired(this);
+        return true;
+    }
+
+    private void setAudio(ByteBuffer newMappedFile, PeakPyramid newPeaks) {
+        PcmStream stream = openStream(newMappedFile);
+        short[] newStreamHead =
+                stream.getFrameCount() > maxResidentFrames
+                        ? ReadAheadStream.readHead(stream, streamWindowFrames)
+                        : null;
+        synchronized (this) {
+            mappedFile = newMappedFile;
+            streamHead = newStreamHead;
+            peaks = newPeaks;
+            residentPcm = null;
+            if (!isOverdubbing) {
+                // The new file is either the overdub's result or a take that replaces it.
+                overdubPcm = null;
+                isOverdubSaving = false;
+            }
+            sampleCache.remove(this);
+            refreshStream();
+        }
+        notifyAudioChanged();
+    }
+
+    /** Reads the waveform from the file's sidecar, rebuilding it if it's missing or out of date. */
+    private static PeakPyramid loadPeaks(File file, PcmStream stream) {
+        File peaksFile = PeakPyramid.sidecarFor(file);
+        try {
+            PeakPyramid peaks = PeakPyramid.read(peaksFile);
+            if (peaks.getFrameCount() == stream.getFrameCount()) {
+                return peaks;
+            }
+        } catch (IOException e) {
+            // Missing or unreadable, so rebuild it below.
+        }
+
+        PeakPyramid peaks = PeakPyramid.fromStream(stream);
+        try {
+            peaks.write(peaksFile);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Unable to save the waveform for %s", file.getName()));
+        }
+        return peaks;
+    }
+
+    /**
+     * The stream a voice should play right now. A long sample reads ahead of the voice in the
+     * background, so the render thread never waits on the disk.
+     */
+    private PcmStream openCurrentStream() {
+        if (streamHead != null && overdubPcm == null && residentPcm == null) {
+            return new ReadAheadStream(
+                    openStream(mappedFile),
+                    streamHead,
+                    streamWindowFrames,
+                    audioEngine.getReadAheadLoader());
+        }
+        return openDirectStream();
+    }
+
+    /** Reads straight from an overdub, the cache's copy, or the file. */
+    private PcmStream openDirectStream() {
+        if (overdubPcm != null) {
+            return new RawPcmStream(overdubPcm);
+        }
+        return residentPcm != null ? new RawPcmStream(residentPcm) : openStream(mappedFile);
+    }
+
+    /** Decodes a whole stream into a direct buffer, off the Java heap. */
+    private static ShortBuffer decodeFully(PcmStream stream) {
+        ShortBuffer pcm =
+                ByteBuffer.allocateDirect(stream.getFrameCount() * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.nativeOrder())
+                        .asShortBuffer();
+        short[] chunk = new short[SampleCodec.BLOCK_SIZE];
+        int framesRead;
+        while ((framesRead = stream.read(chunk, 0, chunk.length)) > 0) {
+            pcm.put(chunk, 0, framesRead);
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    /** Swaps the current audio in under the sample's voice, if it holds one. */
+    private void refreshStream() {
+        if (voice != null) {
+            voice.setStream(openCurrentStream());
+        }
+    }
+}
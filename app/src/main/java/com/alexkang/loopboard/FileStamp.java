@@ -0,0 +1,25 @@
+package com.alexkang.loopboard;
+
+import java.io.File;
+
+/** The size and modification time of a sample file, as of when it was last looked at. */
+class FileStamp {
+
+    final File file;
+    final long length;
+    final long lastModified;
+
+    FileStamp(File file) {
+        this(file, file.length(), file.lastModified());
+    }
+
+    FileStamp(File file, long length, long lastModified) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    boolean matches(FileStamp other) {
+        return length == other.length && lastModified == other.lastModified;
+    }
+}
@@ -0,0 +1,262 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.PeakPyramid;
+import com.alexkang.loopboard.core.PolyphaseResampler;
+import com.alexkang.loopboard.core.SampleCodec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Decodes imported audio files into the same format as recorded samples, once, so they can be
+ * played by the {@link AudioEngine} instead of a {@link android.media.MediaPlayer}. Decoded copies
+ * live in the app's cache directory, keyed by the source file's path, size and modification time,
+ * and by the output's sample rate, so a file is only decoded again after it changes.
+ */
+class ImportCache {
+
+    private static final String TAG = "ImportCache";
+    private static final String CACHE_DIR_NAME = "imported";
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final int OUTPUT_CHUNK_FRAMES = 4096;
+
+    /**
+     * Returns the decoded copy of an imported file, decoding it first if there isn't one yet. This
+     * blocks while decoding, so only call it from a worker thread.
+     *
+     * @return the decoded file, or null if the import couldn't be decoded
+     */
+    static File getDecodedFile(Context context, File sourceFile) {
+        File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+        cacheDir.mkdirs();
+
+        String keyPrefix =
+                String.format(Locale.ENGLISH, "%08x-", sourceFile.getAbsolutePath().hashCode());
+        File decodedFile =
+                new File(
+                        cacheDir,
+                        String.format(
+                                Locale.ENGLISH,
+                                "%s%x-%x-%d",
+                                keyPrefix,
+                                sourceFile.length(),
+                                sourceFile.lastModified(),
+                                AudioConfig.getSampleRateHz()));
+        if (decodedFile.exists()) {
+            return decodedFile;
+        }
+
+        // Throw away copies of older versions of this file.
+        File[] cachedFiles = cacheDir.listFiles();
+        if (cachedFiles != null) {
+            for (File cachedFile : cachedFiles) {
+                if (cachedFile.getName().startsWith(keyPrefix)) {
+                    cachedFile.delete();
+                }
+            }
+        }
+
+        File tempFile = null;
+        try {
+            tempFile = Utils.createTempRecording(context);
+            decode(sourceFile, tempFile);
+            if (tempFile.renameTo(decodedFile)) {
+                PeakPyramid.sidecarFor(tempFile).renameTo(PeakPyramid.sidecarFor(decodedFile));
+                return decodedFile;
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, String.format("Unable to decode %s", sourceFile.getName()), e);
+        }
+        if (tempFile != null) {
+            tempFile.delete();
+            PeakPyramid.sidecarFor(tempFile).delete();
+        }
+        return null;
+    }
+
+    /** Runs an audio file through the platform decoder into a {@link SampleCodec} file. */
+    private static void decode(File sourceFile, File destination) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        boolean isStarted = false;
+        PeakPyramid.Builder peaks = null;
+        try {
+            extractor.setDataSource(sourceFile.getAbsolutePath());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                throw new IOException("No audio track found");
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            isStarted = true;
+
+            // Collect the waveform on the way through, so the row can draw it straight away.
+            peaks =
+                    new PeakPyramid.Builder(
+                            new SampleCodec.Encoder(
+                                    new FileOutputStream(destination).getChannel(),
+                                    AudioConfig.getSampleRateHz()));
+            PcmConverter converter =
+                    new PcmConverter(
+                            peaks,
+                            format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            boolean isInputDone = false;
+            boolean isOutputDone = false;
+            while (!isOutputDone) {
+                if (!isInputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(inputIndex);
+                        int size = extractor.readSampleData(inputBuffer, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(
+                                    inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            isInputDone = true;
+                        } else {
+                            codec.queueInputBuffer(
+                                    inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(bufferInfo, CODEC_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    converter.setFormat(codec.getOutputFormat());
+                } else if (outputIndex >= 0) {
+                    ByteBuffer outputBuffer = codec.getOutputBuffer(outputIndex);
+                    outputBuffer.position(bufferInfo.offset);
+                    outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                    converter.write(outputBuffer);
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    isOutputDone = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+
+            converter.finish();
+            peaks.close();
+            peaks.build().write(PeakPyramid.sidecarFor(destination));
+        } finally {
+            if (codec != null) {
+                // Stopping a codec that never started throws, and would hide the real error.
+                try {
+                    if (isStarted) {
+                        codec.stop();
+                    }
+                } finally {
+                    codec.release();
+                }
+            }
+            extractor.release();
+            if (peaks != null) {
+                peaks.close();
+            }
+        }
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns whatever the decoder produces into 16-bit mono PCM at the output's sample rate:
+     * channels are averaged down to mono, and other sample rates go through a
+     * {@link PolyphaseResampler}.
+     */
+    private static class PcmConverter {
+
+        private final WritableByteChannel encoder;
+        private final ByteBuffer output =
+                ByteBuffer.allocate(OUTPUT_CHUNK_FRAMES * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        private int sampleRate;
+        private int channelCount;
+        private boolean isFloat = false;
+        // Where mono frames go: the encoder, or a resampler in front of it. Chosen at the first
+        // write, since the decoder only settles on its output format just before that.
+        private WritableByteChannel target;
+
+        private PcmConverter(WritableByteChannel encoder, int sampleRate, int channelCount) {
+            this.encoder = encoder;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        private void setFormat(MediaFormat format) {
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            isFloat = format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                    && format.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                            == AudioFormat.ENCODING_PCM_FLOAT;
+        }
+
+        private void write(ByteBuffer decoded) throws IOException {
+            if (target == null) {
+                int outputRate = AudioConfig.getSampleRateHz();
+                target =
+                        sampleRate == outputRate
+                                ? encoder
+                                : new PolyphaseResampler(encoder, sampleRate, outputRate);
+            }
+
+            decoded.order(ByteOrder.nativeOrder());
+            int bytesPerFrame = channelCount * (isFloat ? 4 : 2);
+            while (decoded.remaining() >= bytesPerFrame) {
+                // Mix the frame down to mono.
+                float frame = 0;
+                for (int channel = 0; channel < channelCount; channel++) {
+                    frame += isFloat ? decoded.getFloat() * Short.MAX_VALUE : decoded.getShort();
+                }
+                frame /= channelCount;
+
+                output.putShort(
+                        (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, frame)));
+                if (!output.hasRemaining()) {
+                    writeOutput();
+                }
+            }
+        }
+
+        /** Writes out whatever is left, including the end of a resampled file. */
+        private void finish() throws IOException {
+            if (target == null) {
+                return;
+            }
+            writeOutput();
+            if (target != encoder) {
+                target.close();
+            }
+        }
+
+        private void writeOutput() throws IOException {
+            output.flip();
+            target.write(output);
+            output.clear();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A catalog of the supported files in the import folder, kept current by a {@link FileObserver}
+ * rather than by rescanning. Once it's open, adds, removes and modifications are applied one at a
+ * time as they happen, and reading the catalog never touches the disk.
+ *
+ * <p>The catalog is saved between runs, along with the folder's modification time. On a cold start
+ * the folder is only listed again if that time has moved, meaning files came or went while nothing
+ * was watching. Otherwise each file in the catalog is just checked for changes.
+ */
+class ImportIndex {
+
+    private static final String TAG = "ImportIndex";
+    private static final String INDEX_DIR_NAME = "imports";
+    private static final String INDEX_FILE_NAME = "imports.index";
+    private static final int INDEX_MAGIC = 0x4c42494e;
+    private static final int INDEX_VERSION = 1;
+    // A file is only picked up once it's finished being written.
+    private static final int WATCHED_EVENTS =
+            FileObserver.CLOSE_WRITE
+                    | FileObserver.MOVED_TO
+                    | FileObserver.MOVED_FROM
+                    | FileObserver.DELETE
+                    | FileObserver.DELETE_SELF
+                    | FileObserver.MOVE_SELF;
+
+    private final Context context;
+    private final File importDir = new File(Utils.IMPORTED_SAMPLE_PATH);
+    private final ChangeListener changeListener;
+
+    // Everything below is guarded by this.
+    private final Map<String, FileStamp> catalog = new HashMap<>();
+    private FileObserver observer;
+    private long importDirLastModified = -1;
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+
+    interface ChangeListener {
+        /** Called on the watching thread whenever the catalog changes. */
+        void onImportsChanged();
+    }
+
+    ImportIndex(Context context, ChangeListener changeListener) {
+        this.context = context;
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Brings the catalog up to date and starts watching the folder, unless it's already being
+     * watched. Blocks on the disk the first time, so only call it from a worker thread.
+     *
+     * @return the files in the folder
+     */
+    synchronized List<FileStamp> open() {
+        if (observer != null) {
+            return getFiles();
+        }
+
+        // Also create the LoopBoard directory if it doesn't already exist.
+        importDir.mkdirs();
+        if (!isLoaded) {
+            load();
+            isLoaded = true;
+        }
+
+        // Watch first, so nothing that happens while we catch up is missed.
+        observer = new ImportObserver();
+        observer.startWatching();
+        if (!catchUp()) {
+            // This means that external storage permission was not granted.
+            observer.stopWatching();
+            observer = null;
+        }
+        return getFiles();
+    }
+
+    /** Returns the files in the folder, as of the last change. Never touches the disk. */
+    synchronized List<FileStamp> getFiles() {
+        return new ArrayList<>(catalog.values());
+    }
+
+    synchronized boolean contains(File file) {
+        return catalog.containsKey(file.getName());
+    }
+
+    /** Saves the catalog for the next cold start, if it's changed. Blocks on the disk. */
+    synchronized void save() {
+        if (!isDirty) {
+            return;
+        }
+
+        File indexFile = getIndexFile();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            DataOutputStream output =
+                    new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                output.writeInt(INDEX_MAGIC);
+                output.writeInt(INDEX_VERSION);
+                output.writeLong(importDirLastModified);
+                output.writeInt(catalog.size());
+                for (FileStamp fileStamp : catalog.values()) {
+                    output.writeUTF(fileStamp.file.getName());
+                    output.writeLong(fileStamp.length);
+                    output.writeLong(fileStamp.lastModified);
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the import index");
+            tempFile.delete();
+            return;
+        }
+
+        if (tempFile.renameTo(indexFile)) {
+            isDirty = false;
+        } else {
+            tempFile.delete();
+        }
+    }
+
+    /** Stops watching the folder. */
+    synchronized void close() {
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+    }
+
+    // ------- Private methods -------
+
+    /** Reads the catalog saved by the last run, if there is one. */
+    private void load() {
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream input =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                    return;
+                }
+                long savedDirLastModified = input.readLong();
+                int count = input.readInt();
+                Map<String, FileStamp> savedCatalog = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    File file = new File(importDir, input.readUTF());
+                    savedCatalog.put(
+                            file.getName(),
+                            new FileStamp(file, input.readLong(), input.readLong()));
+                }
+                catalog.putAll(savedCatalog);
+                importDirLastModified = savedDirLastModified;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            // Start over with a full scan.
+            Log.e(TAG, "Unable to read the import index");
+        }
+    }
+
+    /**
+     * Applies whatever changed in the folder while it wasn't being watched.
+     *
+     * @return whether or not the folder could be read
+     */
+    private boolean catchUp() {
+        long dirLastModified = importDir.lastModified();
+        if (dirLastModified != 0 && dirLastModified == importDirLastModified) {
+            // Nothing came or went, but the files that are there may have been rewritten.
+            for (FileStamp fileStamp : new ArrayList<>(catalog.values())) {
+                update(fileStamp.file.getName());
+            }
+            return true;
+        }
+
+        String[] fileNames = importDir.list();
+        if (fileNames == null) {
+            return false;
+        }
+        Map<String, FileStamp> oldCatalog = new HashMap<>(catalog);
+        for (String fileName : fileNames) {
+            oldCatalog.remove(fileName);
+            if (Utils.isSupportedSampleFile(fileName)) {
+                update(fileName);
+            }
+        }
+        // Whatever wasn't listed is gone.
+        catalog.keySet().removeAll(oldCatalog.keySet());
+        importDirLastModified = dirLastModified;
+        isDirty = true;
+        return true;
+    }
+
+    /**
+     * Checks one file against the catalog, adding, refreshing or dropping its entry.
+     *
+     * @return whether or not its entry changed
+     */
+    private boolean update(String fileName) {
+        File file = new File(importDir, fileName);
+        FileStamp oldStamp = catalog.get(fileName);
+        if (!file.isFile()) {
+            if (oldStamp == null) {
+                return false;
+            }
+            catalog.remove(fileName);
+            isDirty = true;
+            return true;
+        }
+
+        FileStamp newStamp = new FileStamp(file);
+        if (oldStamp != null && oldStamp.matches(newStamp)) {
+            return false;
+        }
+        catalog.put(fileName, newStamp);
+        isDirty = true;
+        return true;
+    }
+
+    /** Runs on the watching thread. */
+    private void onEvent(int event, String fileName) {
+        synchronized (this) {
+            if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                // The folder itself is gone. The next open makes a new one and lists it.
+                close();
+                catalog.clear();
+                importDirLastModified = -1;
+                isDirty = true;
+            } else if (fileName == null
+                    || !Utils.isSupportedSampleFile(fileName)
+                    || !update(fileName)) {
+                return;
+            }
+            // The folder's modification time is left as it was when it was last listed in full.
+            // Reading it here could pick up a file that arrived after this event, whose own event
+            // is still to come, and the next catch up would then never list it.
+        }
+        changeListener.onImportsChanged();
+    }
+
+    private File getIndexFile() {
+        // Kept out of the files directory, which only holds recordings.
+        return new File(context.getDir(INDEX_DIR_NAME, Context.MODE_PRIVATE), INDEX_FILE_NAME);
+    }
+
+    private class ImportObserver extends FileObserver {
+
+        private ImportObserver() {
+            super(importDir.getPath(), WATCHED_EVENTS);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            ImportIndex.this.onEvent(event, path);
+        }
+    }
+}
@@ -3,18 +3,59 @@ package com.alexkang.loopboard;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 
-class ImportedSample extends Sample {
+class ImportedSample extends EngineSample {
+
+    private static final String TAG = "ImportedSample";
 
     private final Context context;
+    private final PlaybackController playbackController;
     private final File sampleFile;
 
-    private MediaPlayer mediaPlayer;
+    // Imports play through the engine once decoded. A MediaPlayer is only used as a fallback for
+    // files the platform decoder couldn't handle, and those play without effects.
+    private volatile MediaPlayer mediaPlayer;
+    private volatile boolean isMediaPlayerLooping = false;
+
+    /**
+     * Prepares an imported file for playback, decoding it into the {@link ImportCache} if it hasn't
+     * been already. This blocks while decoding, so only call it from a worker thread.
+     */
+    static ImportedSample openImportedSample(
+            Context context,
+            AudioEngine audioEngine,
+            SampleCache sampleCache,
+            PlaybackController playbackController,
+            File sampleFile) {
+        ImportedSample importedSample =
+                new ImportedSample(
+                        context, audioEngine, sampleCache, playbackController, sampleFile);
+
+        File decodedFile = ImportCache.getDecodedFile(context, sampleFile);
+        if (decodedFile != null) {
+            try {
+                importedSample.setAudioFile(decodedFile);
+            } catch (IOException e) {
+                Log.e(TAG, String.format(
+                        "openImportedSample: Unable to map decoded %s", sampleFile.getName()));
+            }
+        }
+        return importedSample;
+    }
 
-    ImportedSample(Context context, File sampleFile) {
+    private ImportedSample(
+            Context context,
+            AudioEngine audioEngine,
+            SampleCache sampleCache,
+            PlaybackController playbackController,
+            File sampleFile) {
+        super(audioEngine, sampleCache);
         this.context = context;
+        this.playbackController = playbackController;
         this.sampleFile = sampleFile;
     }
 
@@ -24,22 +65,61 @@ class ImportedSample extends Sample {
     }
 
     @Override
-    synchronized void play(boolean isLooped) {
-        if (mediaPlayer == null) {
-            mediaPlayer = MediaPlayer.create(context, Uri.parse(sampleFile.getAbsolutePath()));
+    void play(boolean isLooped, long requestNanos) {
+        // Not under this sample's lock, since taking a voice may ask other samples to give theirs
+        // back.
+        if (hasAudio()) {
+            super.play(isLooped, requestNanos);
+            return;
         }
-        mediaPlayer.setLooping(isLooped);
 
-        try {
-            mediaPlayer.seekTo(0);
-            mediaPlayer.start();
-        } catch (IllegalStateException e) {
-            // Ignore. We tried out best.
+        synchronized (this) {
+            if (mediaPlayer == null) {
+                mediaPlayer =
+                        MediaPlayer.create(context, Uri.parse(sampleFile.getAbsolutePath()));
+                if (mediaPlayer == null) {
+                    // Neither decoder can read the file, so the sample stays silent.
+                    Log.e(TAG, String.format(
+                            "play: Unable to open %s for playback", sampleFile.getName()));
+                    return;
+                }
+                // Hand the player back as soon as a one-shot finishes, rather than holding on to
+                // it for every fallback sample on the board. This is called on the UI thread, so
+                // the release goes through the controller, in order with any retrigger.
+                mediaPlayer.setOnCompletionListener(player -> {
+                    if (player == mediaPlayer) {
+                        playbackController.complete(this);
+                    }
+                });
+            }
+            mediaPlayer.setLooping(isLooped);
+            isMediaPlayerLooping = isLooped;
+
+            try {
+                mediaPlayer.seekTo(0);
+                mediaPlayer.start();
+            } catch (IllegalStateException e) {
+                // Ignore. We tried out best.
+            }
+        }
+        notifyPlaybackChanged();
+    }
+
+    @Override
+    void prepare() {
+        // A fallback MediaPlayer is only created once the sample is played.
+        if (hasAudio()) {
+            super.prepare();
         }
     }
 
     @Override
     synchronized void stop() {
+        if (hasAudio()) {
+            super.stop();
+            return;
+        }
+
         if (mediaPlayer == null) {
             return;
         }
@@ -50,15 +130,29 @@ class ImportedSample extends Sample {
         }
         mediaPlayer.release();
         mediaPlayer = null;
+        isMediaPlayerLooping = false;
+        notifyPlaybackChanged();
     }
 
     @Override
-    synchronized boolean isLooping() {
-        return mediaPlayer != null && mediaPlayer.isLooping();
+    synchronized void onPlaybackComplete() {
+        // A retrigger since the completion has the player going again.
+        if (mediaPlayer != null && !hasAudio() && !mediaPlayer.isPlaying()) {
+            stop();
+        }
+    }
+
+    @Override
+    boolean isLooping() {
+        if (hasAudio()) {
+            return super.isLooping();
+        }
+        return isMediaPlayerLooping;
     }
 
     @Override
     synchronized void shutdown() {
         stop();
+        super.shutdown();
     }
 }
@@ -0,0 +1,13 @@
+package com.alexkang.loopboard;
+
+import android.app.Application;
+
+public class LoopBoardApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Everything that touches audio depends on this, so it has to come first.
+        AudioConfig.init(this);
+    }
+}
@@ -10,25 +10,29 @@ import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements SampleLoader.LoaderCallback {
 
+    private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_CODE = 0;
     private static final int FOOTER_SIZE_DP = 360;
     private static final String[] PERMISSIONS =
@@ -36,11 +40,31 @@ public class MainActivity extends AppCompatActivity {
 
     private final ArrayList<ImportedSample> importedSamples = new ArrayList<>();
     private final ArrayList<RecordedSample> recordedSamples = new ArrayList<>();
-    private final Recorder recorder = new Recorder();
+    private final Metrics metrics = new Metrics();
+    private final Recorder recorder = new Recorder(this, metrics);
+    private final AudioEngine audioEngine = new AudioEngine(metrics);
+    private final SampleCache sampleCache = new SampleCache();
+    private final PlaybackController playbackController = new PlaybackController();
+    private final RecordingStore recordingStore = new RecordingStore(this);
+    private final BoardPacker boardPacker = new BoardPacker(this);
+    private final SampleLoader sampleLoader =
+            new SampleLoader(
+                    this,
+                    audioEngine,
+                    sampleCache,
+                    metrics,
+                    playbackController,
+                    recordingStore,
+                    boardPacker,
+                    this);
     private final SampleListAdapter sampleListAdapter =
-            new SampleListAdapter(this, recorder, importedSamples, recordedSamples);
+            new SampleListAdapter(this, recorder, playbackController, recordingStore);
+    private final Bouncer bouncer = new Bouncer();
     private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor();
 
+    private boolean isRecorderArmed = false;
+    private int currentBank = 0;
+
     // ------- Activity lifecycle methods -------
 
     @Override
@@ -50,19 +74,23 @@ public class MainActivity extends AppCompatActivity {
 		setContentView(R.layout.activity_main);
 
         checkPermissions();
+        sampleCache.setBudgetBytes(SampleCache.getDefaultBudgetBytes(this));
 
 		// Retrieve UI elements.
-        ListView sampleList = findViewById(R.id.sound_list);
+        RecyclerView sampleList = findViewById(R.id.sound_list);
         Button recordButton = findViewById(R.id.record_button);
 
         // Initialize the sample list.
+        DividerItemDecoration divider =
+                new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
+        divider.setDrawable(ContextCompat.getDrawable(this, R.drawable.sample_divider));
+        sampleList.setLayoutManager(new LinearLayoutManager(this));
+        sampleList.addItemDecoration(divider);
+        sampleList.setHasFixedSize(true);
         sampleList.setAdapter(sampleListAdapter);
 
         // Add some footer space at the bottom of the sample list.
-        View footer = new View(this);
-        footer.setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, FOOTER_SIZE_DP));
-        footer.setBackgroundColor(getResources().getColor(android.R.color.transparent));
-        sampleList.addFooterView(footer, null, false);
+        sampleList.setPadding(0, 0, 0, FOOTER_SIZE_DP);
 
         // Define the record button behavior. Tap and hold to record, release to stop and save.
         recordButton.setOnTouchListener((view, motionEvent) -> {
@@ -78,11 +106,13 @@ public class MainActivity extends AppCompatActivity {
                             R.string.error_max_samples,
                             Snackbar.LENGTH_SHORT).show();
                 } else {
-                    recorder.startRecording(recordedBytes -> saveRecording(recordedBytes));
+                    recorder.startRecording(
+                            recordingFile -> saveRecording(recordingFile),
+                            motionEvent.getEventTime());
                 }
             } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
                 view.setPressed(false);
-                recorder.stopRecording();
+                recorder.stopRecording(motionEvent.getEventTime());
             }
 
             return true;
@@ -95,19 +125,44 @@ public class MainActivity extends AppCompatActivity {
         refreshRecordings();
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        recorder.setArmed(isRecorderArmed);
+    }
+
     @Override
 	public void onPause() {
 		super.onPause();
         stopAllSamples();
+
+        // Don't keep the microphone open in the background.
+        recorder.setArmed(false);
 	}
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        sampleCache.onTrimMemory(level);
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
 
-        shutdownSamples();
+        stopAllSamples();
+        sampleLoader.shutdown();
+        importedSamples.clear();
+        recordedSamples.clear();
 
+        // Let the samples finish shutting down before the engine goes away underneath them.
+        playbackController.shutdown();
         recorder.shutdown();
+        recordingStore.shutdown();
+        bouncer.shutdown();
+        boardPacker.shutdown();
+        sampleCache.shutdown();
+        audioEngine.shutdown();
         saveExecutor.shutdown();
     }
 
@@ -129,11 +184,57 @@ public class MainActivity extends AppCompatActivity {
                         .setNegativeButton(R.string.no, (dialog, which) -> dialog.dismiss())
                         .show();
 
+                return true;
+            case R.id.action_previous_bank:
+                prepareSamples(showBank(currentBank - 1));
+
+                return true;
+            case R.id.action_next_bank:
+                prepareSamples(showBank(currentBank + 1));
+
                 return true;
             case R.id.action_stop:
                 // Stop all currently playing samples.
                 stopAllSamples();
 
+                return true;
+            case R.id.action_arm:
+                // Keep the microphone capturing so takes start right at the touch.
+                isRecorderArmed = !item.isChecked();
+                item.setChecked(isRecorderArmed);
+                recorder.setArmed(isRecorderArmed);
+
+                return true;
+            case R.id.action_pre_roll:
+                showPreRollDialog();
+
+                return true;
+            case R.id.action_overdub:
+                // Layer new parts onto looping samples instead of replacing them.
+                item.setChecked(!item.isChecked());
+                sampleListAdapter.setOverdubEnabled(item.isChecked());
+
+                return true;
+            case R.id.action_quantize:
+                // Line newly launched loops up with the ones already playing.
+                item.setChecked(!item.isChecked());
+                audioEngine.getTransport().setQuantization(
+                        item.isChecked()
+                                ? Transport.Quantization.BAR
+                                : Transport.Quantization.NONE);
+
+                return true;
+            case R.id.action_tempo:
+                showTempoDialog();
+
+                return true;
+            case R.id.action_bounce:
+                showBounceDialog();
+
+                return true;
+            case R.id.action_metrics:
+                showMetricsDialog();
+
                 return true;
             default:
                 return true;
@@ -163,6 +264,31 @@ public class MainActivity extends AppCompatActivity {
         refreshRecordings();
     }
 
+    // ------- SampleLoader callbacks -------
+
+    @Override
+    public void onSampleLoaded(Sample sample) {
+        if (sample instanceof ImportedSample) {
+            insertSorted(importedSamples, (ImportedSample) sample);
+        } else {
+            insertSorted(recordedSamples, (RecordedSample) sample);
+        }
+
+        if (showBank(currentBank).contains(sample)) {
+            playbackController.prepare(sample);
+        }
+        updateTutorialVisibility();
+    }
+
+    @Override
+    public void onSampleRemoved(Sample sample) {
+        importedSamples.remove(sample);
+        recordedSamples.remove(sample);
+
+        showBank(currentBank);
+        updateTutorialVisibility();
+    }
+
     // ------- Private methods -------
 
     private void checkPermissions() {
@@ -192,36 +318,54 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void refreshRecordings() {
-        shutdownSamples();
+        // Samples are loaded in the background and show up in the list as they become ready.
+        sampleLoader.refresh();
+    }
 
-        // First, add user imported audio files to the top of our sample list. Also, create the
-        // LoopBoard directory if it doesn't already exist.
-        try {
-            File importedDir = new File(Utils.IMPORTED_SAMPLE_PATH);
-            importedDir.mkdirs();
-            for (File file : importedDir.listFiles()) {
-                if (Utils.isSupportedSampleFile(file)) {
-                    importedSamples.add(new ImportedSample(this, file));
-                }
-            }
-        } catch (NullPointerException e) {
-            // No-op. This means that external storage permission was not granted.
+    /**
+     * Puts a bank of samples on screen, imports first, and titles the screen with it. Banks past
+     * the last sample fall back to the last bank.
+     *
+     * @return the samples now on screen
+     */
+    private List<Sample> showBank(int bank) {
+        List<Sample> allSamples = new ArrayList<>(importedSamples.size() + recordedSamples.size());
+        allSamples.addAll(importedSamples);
+        allSamples.addAll(recordedSamples);
+
+        int bankCount = Math.max(1, (allSamples.size() + Utils.BANK_SIZE - 1) / Utils.BANK_SIZE);
+        currentBank = Math.max(0, Math.min(bank, bankCount - 1));
+        int start = currentBank * Utils.BANK_SIZE;
+        List<Sample> bankSamples =
+                allSamples.subList(start, Math.min(allSamples.size(), start + Utils.BANK_SIZE));
+
+        sampleListAdapter.setSamples(bankSamples);
+        if (bankCount > 1) {
+            setTitle(getString(R.string.bank_title, currentBank + 1, bankCount));
+        } else {
+            setTitle(R.string.app_name);
         }
+        return bankSamples;
+    }
 
-        // Next, add samples recorded from this app.
-        for (String fileName : fileList()) {
-            RecordedSample recordedSample = RecordedSample.openSavedSample(this, fileName);
-            if (recordedSample != null) {
-                recordedSamples.add(recordedSample);
-            }
+    /** Has the samples on screen take their voices now, rather than at their first touch. */
+    private void prepareSamples(List<Sample> samples) {
+        for (Sample sample : samples) {
+            playbackController.prepare(sample);
         }
+    }
 
-        // Tell the ListView to refresh.
-        sampleListAdapter.notifyDataSetChanged();
-        updateTutorialVisibility();
+    /** Keeps the sample list ordered by name no matter which order samples finish loading in. */
+    private static <T extends Sample> void insertSorted(List<T> samples, T sample) {
+        int index = 0;
+        while (index < samples.size()
+                && samples.get(index).getName().compareTo(sample.getName()) <= 0) {
+            index++;
+        }
+        samples.add(index, sample);
     }
 
-    private void saveRecording(byte[] recordedBytes) {
+    private void saveRecording(File recordingFile) {
 	    // Initialize the name input field for the sample.
         @SuppressLint("InflateParams") View saveLayout =
                 getLayoutInflater().inflate(R.layout.save_sample_dialog, null);
@@ -238,54 +382,181 @@ public class MainActivity extends AppCompatActivity {
                 .setTitle(getString(R.string.name_recording))
                 .setView(saveLayout)
                 .setPositiveButton(
-                        getString(R.string.save), (dialog, which) -> saveExecutor.execute(() -> {
-                            String name = sampleNameField.getText().toString();
-                            if (Utils.saveRecording(getBaseContext(), name, recordedBytes)) {
-                                runOnUiThread(() -> {
-                                    recordedSamples
-                                            .add(RecordedSample
-                                                    .openSavedSample(this, name));
-                                    sampleListAdapter.notifyDataSetChanged();
-                                    updateTutorialVisibility();
-                                });
-                            } else {
-                                Snackbar.make(
-                                        findViewById(R.id.root_layout),
-                                        R.string.error_saving,
-                                        Snackbar.LENGTH_SHORT).show();
-                            }
-                        }))
+                        getString(R.string.save), (dialog, which) -> recordingStore.save(
+                                sampleNameField.getText().toString(),
+                                recordingFile,
+                                // The store calls back on its own thread.
+                                isSaved -> runOnUiThread(() -> {
+                                    if (isSaved) {
+                                        // The loader will pick up the new file and add it to the
+                                        // list.
+                                        refreshRecordings();
+                                    } else {
+                                        Snackbar.make(
+                                                findViewById(R.id.root_layout),
+                                                R.string.error_saving,
+                                                Snackbar.LENGTH_SHORT).show();
+                                    }
+                                })))
                 .setCancelable(false)
                 .show());
     }
 
-    private void stopAllSamples() {
-        for (Sample sample : importedSamples) {
-            sample.stop();
+    private void showTempoDialog() {
+        Transport transport = audioEngine.getTransport();
+        @SuppressLint("InflateParams") View tempoLayout =
+                getLayoutInflater().inflate(R.layout.tempo_dialog, null);
+        EditText tempoField = tempoLayout.findViewById(R.id.tempo_field);
+        tempoField.setText(String.valueOf(transport.getTempoBpm()));
+        tempoField.selectAll();
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.tempo_title))
+                .setView(tempoLayout)
+                .setPositiveButton(getString(R.string.save), (dialog, which) -> {
+                    try {
+                        transport.setTempoBpm(Integer.parseInt(tempoField.getText().toString()));
+                    } catch (NumberFormatException e) {
+                        // Keep the current tempo.
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void showPreRollDialog() {
+        @SuppressLint("InflateParams") View preRollLayout =
+                getLayoutInflater().inflate(R.layout.pre_roll_dialog, null);
+        EditText preRollField = preRollLayout.findViewById(R.id.pre_roll_field);
+        preRollField.setText(String.valueOf(recorder.getPreRollMillis()));
+        preRollField.selectAll();
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.pre_roll_title, Recorder.MAX_PRE_ROLL_MS))
+                .setView(preRollLayout)
+                .setPositiveButton(getString(R.string.save), (dialog, which) -> {
+                    try {
+                        recorder.setPreRollMillis(
+                                Integer.parseInt(preRollField.getText().toString()));
+                    } catch (NumberFormatException e) {
+                        // Keep the current pre-roll.
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void showBounceDialog() {
+        List<EngineSample> allSamples =
+                new ArrayList<>(importedSamples.size() + recordedSamples.size());
+        allSamples.addAll(importedSamples);
+        allSamples.addAll(recordedSamples);
+
+        // Start with whatever is looping, so the default is a bounce of what's heard.
+        CharSequence[] names = new CharSequence[allSamples.size()];
+        boolean[] isChosen = new boolean[allSamples.size()];
+        for (int i = 0; i < allSamples.size(); i++) {
+            names[i] = allSamples.get(i).getName();
+            isChosen[i] = allSamples.get(i).isLooping();
         }
-        for (Sample sample : recordedSamples) {
-            sample.stop();
+
+        @SuppressLint("InflateParams") View bounceLayout =
+                getLayoutInflater().inflate(R.layout.bounce_dialog, null);
+        EditText barsField = bounceLayout.findViewById(R.id.bars_field);
+        barsField.setText(String.valueOf(Bouncer.DEFAULT_BARS));
+        barsField.selectAll();
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.bounce_title))
+                .setView(bounceLayout)
+                .setMultiChoiceItems(
+                        names, isChosen, (dialog, which, isChecked) -> isChosen[which] = isChecked)
+                .setPositiveButton(getString(R.string.bounce), (dialog, which) -> {
+                    List<EngineSample> chosenSamples = new ArrayList<>();
+                    for (int i = 0; i < allSamples.size(); i++) {
+                        if (isChosen[i]) {
+                            chosenSamples.add(allSamples.get(i));
+                        }
+                    }
+                    int bars;
+                    try {
+                        bars = Integer.parseInt(barsField.getText().toString());
+                    } catch (NumberFormatException e) {
+                        bars = Bouncer.DEFAULT_BARS;
+                    }
+                    bouncer.bounce(
+                            chosenSamples,
+                            bars,
+                            audioEngine.getTransport(),
+                            bounceFile -> runOnUiThread(() -> showBounceResult(bounceFile)));
+                })
+                .setNegativeButton(android.R.string.cancel, (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    private void showBounceResult(File bounceFile) {
+        if (bounceFile == null) {
+            Snackbar.make(
+                    findViewById(R.id.root_layout),
+                    R.string.error_saving,
+                    Snackbar.LENGTH_SHORT).show();
+        } else {
+            Snackbar.make(
+                    findViewById(R.id.root_layout),
+                    getString(R.string.bounce_saved, bounceFile.getPath()),
+                    Snackbar.LENGTH_LONG).show();
         }
+    }
 
-        // Refresh the list to update button states.
-        sampleListAdapter.notifyDataSetChanged();
+    private void showMetricsDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.metrics_title))
+                .setMessage(metrics.getReport()
+                        + "\n" + audioEngine.getTransport()
+                        + "\n" + sampleCache
+                        + "\n" + audioEngine.getVoicePool()
+                        + "\n" + audioEngine.getReadAheadLoader())
+                .setPositiveButton(
+                        getString(R.string.metrics_dump),
+                        (dialog, which) -> saveExecutor.execute(this::dumpMetrics))
+                .setNeutralButton(
+                        getString(R.string.metrics_reset), (dialog, which) -> metrics.reset())
+                .setNegativeButton(android.R.string.cancel, (dialog, which) -> dialog.dismiss())
+                .show();
     }
 
-    private void shutdownSamples() {
-        // First, stop all currently playing samples.
-        stopAllSamples();
+    private void dumpMetrics() {
+        File dumpFile = null;
+        try {
+            dumpFile = metrics.dump(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to dump metrics", e);
+        }
+        File result = dumpFile;
+        runOnUiThread(() -> showMetricsDumpResult(result));
+    }
+
+    private void showMetricsDumpResult(File dumpFile) {
+        if (dumpFile == null) {
+            Snackbar.make(
+                    findViewById(R.id.root_layout),
+                    R.string.error_saving,
+                    Snackbar.LENGTH_SHORT).show();
+        } else {
+            Snackbar.make(
+                    findViewById(R.id.root_layout),
+                    getString(R.string.metrics_dumped, dumpFile.getPath()),
+                    Snackbar.LENGTH_LONG).show();
+        }
+    }
 
-        // Call shutdown on each sample.
+    private void stopAllSamples() {
         for (Sample sample : importedSamples) {
-            sample.shutdown();
+            playbackController.stop(sample);
         }
         for (Sample sample : recordedSamples) {
-            sample.shutdown();
+            playbackController.stop(sample);
         }
-
-        // Clear the lists.
-        importedSamples.clear();
-        recordedSamples.clear();
     }
 
 	private void deleteAllRecordings() {
@@ -0,0 +1,127 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.alexkang.loopboard.core.Histogram;
+import com.alexkang.loopboard.core.PcmFormat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency and load measurements for comparing devices. Everything recorded on the audio paths goes
+ * into preallocated {@link Histogram}s, so measuring never allocates or blocks there.
+ */
+class Metrics {
+
+    private static final String DUMP_FILE_FORMAT = "metrics-%s.txt";
+    private static final double MICROS_PER_MILLI = 1000;
+
+    /** From a play handler asking for a sample to when its first frame reaches the speaker. */
+    final Histogram touchToSoundMicros = new Histogram();
+    /**
+     * From touching record to the first frame coming back from the microphone. Armed takes start
+     * in the pre-roll, so only unarmed takes are measured.
+     */
+    final Histogram touchToCaptureMicros = new Histogram();
+    /** How long the engine takes to mix one block. */
+    final Histogram renderBlockMicros = new Histogram();
+    /** How long each sample takes to open, including any decoding. */
+    final Histogram sampleLoadMicros = new Histogram();
+
+    private final Map<String, Long> lastLoadMicros = new LinkedHashMap<>();
+    private volatile int underrunCount = 0;
+
+    /** Updates the output track's underrun count. The track keeps the running total. */
+    void setUnderrunCount(int underrunCount) {
+        this.underrunCount = underrunCount;
+    }
+
+    int getUnderrunCount() {
+        return underrunCount;
+    }
+
+    void recordSampleLoad(String name, long micros) {
+        sampleLoadMicros.record(micros);
+        synchronized (lastLoadMicros) {
+            lastLoadMicros.put(name, micros);
+        }
+    }
+
+    void reset() {
+        touchToSoundMicros.reset();
+        touchToCaptureMicros.reset();
+        renderBlockMicros.reset();
+        sampleLoadMicros.reset();
+        synchronized (lastLoadMicros) {
+            lastLoadMicros.clear();
+        }
+    }
+
+    /** A human-readable report of everything measured so far. */
+    String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(
+                Locale.ENGLISH, "%s %s, API %d\n", Build.MANUFACTURER, Build.MODEL,
+                Build.VERSION.SDK_INT));
+        report.append(String.format(
+                Locale.ENGLISH,
+                "Sample rate: %d Hz, burst: %d frames\n"
+                        + "Output buffer: %d frames, render block: %d frames\n\n",
+                AudioConfig.getSampleRateHz(), AudioConfig.getFramesPerBurst(),
+                AudioConfig.getOutputBufferSize() / PcmFormat.BYTES_PER_OUTPUT_FRAME,
+                AudioConfig.getRenderFrames()));
+        appendHistogram(report, "Touch to sound", touchToSoundMicros);
+        appendHistogram(report, "Touch to capture", touchToCaptureMicros);
+        appendHistogram(report, "Render block", renderBlockMicros);
+        appendHistogram(report, "Sample load", sampleLoadMicros);
+        report.append(String.format(Locale.ENGLISH, "Underruns: %d\n", underrunCount));
+
+        synchronized (lastLoadMicros) {
+            if (!lastLoadMicros.isEmpty()) {
+                report.append("\nLoad time per sample:\n");
+            }
+            for (Map.Entry<String, Long> entry : lastLoadMicros.entrySet()) {
+                report.append(String.format(
+                        Locale.ENGLISH, "  %s: %.1fms\n",
+                        entry.getKey(), entry.getValue() / MICROS_PER_MILLI));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes the report to a new file in the app's external files directory.
+     *
+     * @return the file that was written
+     */
+    File dump(Context context) throws IOException {
+        String timestamp =
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).format(new Date());
+        File dumpFile =
+                new File(
+                        context.getExternalFilesDir(null),
+                        String.format(Locale.ENGLISH, DUMP_FILE_FORMAT, timestamp));
+        FileWriter writer = new FileWriter(dumpFile);
+        try {
+            writer.write(getReport());
+        } finally {
+            writer.close();
+        }
+        return dumpFile;
+    }
+
+    private static void appendHistogram(StringBuilder report, String name, Histogram histogram) {
+        report.append(name)
+                .append(": ")
+                .append(histogram.format(MICROS_PER_MILLI, "ms"))
+                .append('\n');
+    }
+}
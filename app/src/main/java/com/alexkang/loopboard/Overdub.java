@@ -0,0 +1,88 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+
+import com.alexkang.loopboard.core.PcmFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Sums live input into a sample while it loops. Each captured block is lined up against the frame
+ * of the loop that was coming out of the speaker when it was heard, so the new part lands in time
+ * with the old one rather than late by the round trip through the output and input buffers.
+ *
+ * <p>It's opened and finished on a worker thread, since both go through the whole sample. In
+ * between, only the capture thread touches it.
+ */
+class Overdub {
+
+    private final Context context;
+    private final RecordedSample sample;
+    private final RecordingStore recordingStore;
+    private final long nanosPerFrame = 1000000000L / AudioConfig.getSampleRateHz();
+
+    private ShortBuffer pcm;
+    private boolean isOpen = false;
+    private boolean isWritten = false;
+
+    Overdub(Context context, RecordedSample sample, RecordingStore recordingStore) {
+        this.context = context;
+        this.sample = sample;
+        this.recordingStore = recordingStore;
+    }
+
+    /**
+     * Gets the sample's audio ready to be written into. Decodes the whole sample, so only call it
+     * from a worker thread.
+     */
+    void open() {
+        pcm = sample.startOverdub();
+        isOpen = true;
+    }
+
+    /**
+     * Sums a block of captured input into the loop, consuming it. Blocks captured while the sample
+     * wasn't looping are skipped.
+     *
+     * @param captureEndNanos when the frame just after the block reached the microphone, in
+     *     {@link System#nanoTime()} time
+     */
+    void write(ByteBuffer captured, long captureEndNanos) {
+        int frameCount = captured.remaining() / PcmFormat.BYTES_PER_FRAME;
+        int loopPosition =
+                sample.getLoopPositionAt(captureEndNanos - frameCount * nanosPerFrame);
+        if (pcm == null || loopPosition < 0) {
+            captured.position(captured.limit());
+            return;
+        }
+
+        isWritten = true;
+        captured.order(ByteOrder.LITTLE_ENDIAN);
+        int loopLength = pcm.limit();
+        int start = captured.position();
+        for (int i = 0; i < frameCount; i++) {
+            int frame = (loopPosition + i) % loopLength;
+            int sum = pcm.get(frame) + captured.getShort(start + i * PcmFormat.BYTES_PER_FRAME);
+            pcm.put(frame, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum)));
+        }
+        captured.position(captured.limit());
+    }
+
+    /**
+     * Saves the summed loop as the sample's new take, or if nothing was summed into it, lets the
+     * sample go back to its file. Blocks while encoding, so only call it from a worker thread.
+     */
+    void finish() {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+        if (isWritten) {
+            sample.saveOverdub(context, recordingStore);
+        } else {
+            sample.cancelOverdub();
+        }
+    }
+}
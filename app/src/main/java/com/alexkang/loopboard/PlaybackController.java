@@ -0,0 +1,141 @@
+package com.alexkang.loopboard;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.SpscQueue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Starts and stops samples on a dedicated control thread, so the UI thread never waits on a
+ * sample's lock, a {@link android.media.MediaPlayer} or anything else that can block. The UI posts
+ * commands into a lock-free queue and carries on, and the control thread runs them in order.
+ *
+ * <p>The queue has a single producer, so every method here must be called from the UI thread.
+ */
+class PlaybackController {
+
+    private static final String TAG = "PlaybackController";
+    // Room for a stop and a remove for every sample on a full board, as on the way out, plus
+    // whatever the UI posted just before.
+    private static final int QUEUE_CAPACITY = Utils.MAX_SAMPLES * 4;
+
+    private final SpscQueue<Command> commands = new SpscQueue<>(QUEUE_CAPACITY);
+    private final Thread controlThread;
+    private volatile boolean isRunning = true;
+
+    private enum Action {
+        PLAY,
+        LOOP,
+        STOP,
+        PREPARE,
+        COMPLETE,
+        REMOVE
+    }
+
+    private static class Command {
+
+        private final Action action;
+        private final Sample sample;
+        private final long requestNanos;
+
+        private Command(Action action, Sample sample) {
+            this.action = action;
+            this.sample = sample;
+            this.requestNanos = System.nanoTime();
+        }
+    }
+
+    PlaybackController() {
+        controlThread = new Thread(this::control, TAG);
+        controlThread.start();
+    }
+
+    /** Plays a sample from the top, looping it or not. */
+    void play(Sample sample, boolean isLooped) {
+        post(new Command(isLooped ? Action.LOOP : Action.PLAY, sample));
+    }
+
+    void stop(Sample sample) {
+        post(new Command(Action.STOP, sample));
+    }
+
+    /** Gets a sample ready to play without delay, typically because its bank is on screen. */
+    void prepare(Sample sample) {
+        post(new Command(Action.PREPARE, sample));
+    }
+
+    /** Lets a sample know that it finished playing on its own, behind anything already posted. */
+    void complete(Sample sample) {
+        post(new Command(Action.COMPLETE, sample));
+    }
+
+    /** Stops a sample and shuts it down for good. */
+    void remove(Sample sample) {
+        post(new Command(Action.REMOVE, sample));
+    }
+
+    /** Runs every command that's already been posted, then stops the control thread. */
+    void shutdown() {
+        isRunning = false;
+        LockSupport.unpark(controlThread);
+        try {
+            controlThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------- Private methods -------
+
+    private void post(Command command) {
+        if (!commands.offer(command)) {
+            Log.e(TAG, String.format(
+                    "Dropped %s for %s, the control thread is falling behind",
+                    command.action, command.sample.getName()));
+            return;
+        }
+        LockSupport.unpark(controlThread);
+    }
+
+    // ------- Control thread -------
+
+    private void control() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        while (isRunning) {
+            runCommands();
+            // Returns straight away if a command was posted since the queue was last checked.
+            LockSupport.park(this);
+        }
+        runCommands();
+    }
+
+    private void runCommands() {
+        Command command;
+        while ((command = commands.poll()) != null) {
+            switch (command.action) {
+                case PLAY:
+                    command.sample.play(false, command.requestNanos);
+                    break;
+                case LOOP:
+                    command.sample.play(true, command.requestNanos);
+                    break;
+                case STOP:
+                    command.sample.stop();
+                    break;
+                case PREPARE:
+                    command.sample.prepare();
+                    break;
+                case COMPLETE:
+                    command.sample.onPlaybackComplete();
+                    break;
+                case REMOVE:
+                    command.sample.stop();
+                    command.sample.shutdown();
+                    break;
+            }
+        }
+    }
+}
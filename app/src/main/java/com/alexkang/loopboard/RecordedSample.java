@@ -1,47 +1,45 @@
 package com.alexkang.loopboard;
 
 import android.content.Context;
-import android.media.AudioAttributes;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.util.Log;
 
+import com.alexkang.loopboard.core.BoardPack;
+import com.alexkang.loopboard.core.PcmFiles;
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.PcmStream;
+import com.alexkang.loopboard.core.PeakPyramid;
+import com.alexkang.loopboard.core.PolyphaseResampler;
+import com.alexkang.loopboard.core.RawPcmStream;
+import com.alexkang.loopboard.core.SampleCodec;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
 
-class RecordedSample extends Sample {
+class RecordedSample extends EngineSample {
 
     private static final String TAG = "RecordedSample";
 
     private final String name;
 
-    private boolean isLooping;
-    private byte[] bytes;
-    private AudioTrack audioTrack;
-
     /**
-     * Open a PCM {@link File} and initialize it to play back. This is the correct way to obtain a
+     * Open a saved {@link File} and initialize it to play back. This is the correct way to obtain a
      * {@link RecordedSample} object.
      *
      * @return A sample object ready to be played, or null if an error occurred.
      */
-    static RecordedSample openSavedSample(Context context, String fileName) {
+    static RecordedSample openSavedSample(
+            Context context, AudioEngine audioEngine, SampleCache sampleCache, String fileName) {
         try {
-            // Read the file into bytes.
-            FileInputStream input = context.openFileInput(fileName);
-            byte[] output = new byte[input.available()];
-            int bytesRead = input.read(output);
-            input.close();
-
-            // Make sure we actually read all the bytes.
-            if (bytesRead == output.length) {
-                RecordedSample recordedSample = new RecordedSample(fileName);
-                recordedSample.loadNewSample(output);
-                return recordedSample;
-            }
+            RecordedSample recordedSample =
+                    new RecordedSample(audioEngine, sampleCache, fileName);
+            recordedSample.setAudioFile(context.getFileStreamPath(fileName));
+            return recordedSample;
         } catch (FileNotFoundException e) {
             Log.e(TAG, String.format(
                     "refreshRecordings: Unable to open sample %s", fileName));
@@ -52,7 +50,23 @@ class RecordedSample extends Sample {
         return null;
     }
 
-    private RecordedSample(String name) {
+    /**
+     * Opens a sample straight out of a {@link BoardPack}, without touching its own file. The
+     * sample switches over to its file the next time it's reloaded.
+     */
+    static RecordedSample openPackedSample(
+            AudioEngine audioEngine,
+            SampleCache sampleCache,
+            BoardPack boardPack,
+            BoardPack.Entry entry) {
+        RecordedSample recordedSample =
+                new RecordedSample(audioEngine, sampleCache, entry.getName());
+        recordedSample.setPackedAudio(boardPack.getAudio(entry), boardPack.getPeaks(entry));
+        return recordedSample;
+    }
+
+    private RecordedSample(AudioEngine audioEngine, SampleCache sampleCache, String name) {
+        super(audioEngine, sampleCache);
         this.name = name;
     }
 
@@ -61,68 +75,145 @@ class RecordedSample extends Sample {
         return name;
     }
 
-    @Override
-    synchronized void play(boolean isLooped) {
-        // Stop any ongoing playback.
-        audioTrack.stop();
-        audioTrack.reloadStaticData();
-
-        // Set looping, if needed.
-        if (isLooped) {
-            // The actual amount of frames in a PCM file is half of the raw byte size.
-            audioTrack.setLoopPoints(0, bytes.length / 2, -1);
-        } else {
-            audioTrack.setLoopPoints(0, 0, 0);
+    /** Remaps this sample's file after it has changed on disk. */
+    void reload(Context context) {
+        try {
+            setAudioFile(context.getFileStreamPath(name));
+        } catch (IOException e) {
+            Log.e(TAG, String.format("reload: Unable to map sample %s", name));
         }
+    }
 
-        // Play the sample and update the loop status.
-        audioTrack.play();
-        isLooping = isLooped;
+    /**
+     * Returns whether or not a saved sample has to be converted before it can be played: older
+     * versions of the app saved raw PCM, and every sample is played at the output's native rate.
+     */
+    static boolean needsMigration(File file) throws IOException {
+        ByteBuffer mappedFile = PcmFiles.map(file);
+        return !SampleCodec.isEncoded(mappedFile)
+                || SampleCodec.getSampleRate(mappedFile) != AudioConfig.getSampleRateHz();
     }
 
-    @Override
-    synchronized void stop() {
-        if (audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
-            audioTrack.pause();
+    /**
+     * Re-encodes a saved sample with {@link SampleCodec} at the output's native rate, resampling
+     * it if it was saved at another one. The converted file replaces the original through the
+     * store, unless a new take has been saved in the meantime. Blocks while converting.
+     *
+     * @return whether or not the converted file was handed to the store, in which case the callback
+     *     will hear how it went
+     */
+    static boolean migrate(
+            Context context,
+            RecordingStore recordingStore,
+            File file,
+            RecordingStore.SaveCallback saveCallback) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        File tempFile = null;
+        try {
+            ByteBuffer mappedFile = PcmFiles.map(file);
+            int sourceRateHz = SampleCodec.getSampleRate(mappedFile);
+            int outputRateHz = AudioConfig.getSampleRateHz();
+
+            tempFile = Utils.createTempRecording(context);
+            PeakPyramid.Builder peaks =
+                    new PeakPyramid.Builder(
+                            new SampleCodec.Encoder(
+                                    new FileOutputStream(tempFile).getChannel(), outputRateHz));
+            WritableByteChannel output =
+                    sourceRateHz == outputRateHz
+                            ? peaks
+                            : new PolyphaseResampler(peaks, sourceRateHz, outputRateHz);
+            try {
+                copy(EngineSample.openStream(mappedFile), output);
+            } finally {
+                output.close();
+                peaks.close();
+            }
+            peaks.build().write(PeakPyramid.sidecarFor(tempFile));
+        } catch (IOException e) {
+            Log.e(TAG, String.format("migrate: Unable to convert sample %s", file.getName()));
+            if (tempFile != null) {
+                Utils.deleteRecording(tempFile);
+            }
+            return false;
         }
-        isLooping = false;
-    }
 
-    @Override
-    synchronized boolean isLooping() {
-        return isLooping;
+        // Don't clobber a take that was recorded while we were converting.
+        recordingStore.replace(file.getName(), tempFile, length, lastModified, saveCallback);
+        return true;
     }
 
-    @Override
-    synchronized void shutdown() {
-        audioTrack.release();
+    /**
+     * Update a recorded sample with a newly captured take. The take is moved into place in the
+     * background, and the sample picks it up once it's there.
+     */
+    void save(Context context, RecordingStore recordingStore, File recordingFile) {
+        stop();
+        recordingStore.save(name, recordingFile, isSaved -> {
+            if (isSaved) {
+                reload(context);
+            }
+        });
     }
 
-    /** Update a recorded sample and save it to disk. */
-    synchronized void save(Context context, byte[] bytes) {
-        loadNewSample(bytes);
-        Utils.saveRecording(context, name, bytes);
+    /**
+     * Saves what an overdub summed into this sample as its new take. The sample keeps playing the
+     * summed copy until the saved file takes its place, so the loop never skips. Blocks while
+     * encoding, so only call it from a worker thread.
+     */
+    void saveOverdub(Context context, RecordingStore recordingStore) {
+        ShortBuffer pcm = finishOverdub();
+        if (pcm == null) {
+            return;
+        }
+
+        File tempFile = null;
+        try {
+            tempFile = Utils.createTempRecording(context);
+            PeakPyramid.Builder peaks =
+                    new PeakPyramid.Builder(
+                            new SampleCodec.Encoder(
+                                    new FileOutputStream(tempFile).getChannel(),
+                                    AudioConfig.getSampleRateHz()));
+            try {
+                copy(new RawPcmStream(pcm), peaks);
+            } finally {
+                peaks.close();
+            }
+            peaks.build().write(PeakPyramid.sidecarFor(tempFile));
+        } catch (IOException e) {
+            Log.e(TAG, String.format("saveOverdub: Unable to encode sample %s", name));
+            if (tempFile != null) {
+                Utils.deleteRecording(tempFile);
+            }
+            return;
+        }
+
+        recordingStore.save(name, tempFile, isSaved -> {
+            if (isSaved) {
+                reload(context);
+            }
+        });
     }
 
-    /** Updates the recorded sample. Overwrites any previous recording in this sample. */
-    private void loadNewSample(byte[] bytes) {
-        this.bytes = bytes;
-        this.audioTrack =
-                new AudioTrack(
-                        new AudioAttributes.Builder()
-                                .setUsage(AudioAttributes.USAGE_MEDIA)
-                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                                .build(),
-                        new AudioFormat.Builder()
-                                .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
-                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                                .setSampleRate(Utils.SAMPLE_RATE_HZ)
-                                .build(),
-                        bytes.length,
-                        AudioTrack.MODE_STATIC,
-                        AudioManager.AUDIO_SESSION_ID_GENERATE);
-
-        // Write the audio bytes to the audioTrack to play back.
-        audioTrack.write(bytes, 0, bytes.length);
+    // ------- Private methods -------
+
+    /** Writes a stream out as little-endian 16-bit PCM. */
+    private static void copy(PcmStream stream, WritableByteChannel output) throws IOException {
+        short[] chunk = new short[SampleCodec.BLOCK_SIZE];
+        ByteBuffer bytes =
+                ByteBuffer.allocate(chunk.length * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        int framesRead;
+        while ((framesRead = stream.read(chunk, 0, chunk.length)) > 0) {
+            bytes.clear();
+            bytes.asShortBuffer().put(chunk, 0, framesRead);
+            bytes.limit(framesRead * PcmFormat.BYTES_PER_FRAME);
+            while (bytes.hasRemaining()) {
+                output.write(bytes);
+            }
+        }
     }
 }
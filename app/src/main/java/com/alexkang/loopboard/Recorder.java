@@ -1,14 +1,28 @@
 package com.alexkang.loopboard;
 
+import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.alexkang.loopboard.core.CaptureRingBuffer;
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.PeakPyramid;
+import com.alexkang.loopboard.core.SampleCodec;
+import com.alexkang.loopboard.core.SilenceTrimmer;
+
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 class Recorder {
 
@@ -16,26 +30,95 @@ class Recorder {
     private static final int MIN_RECORDING_SIZE = 22000;
     private static final String TAG = "Recorder";
 
+    // While armed we know exactly when the button was touched, so only the tap itself is skipped.
+    private static final int TOUCH_NOISE_MS = 40;
+    static final int MAX_PRE_ROLL_MS = 500;
+
+    private final Context context;
+    private final Metrics metrics;
     private final ExecutorService recordExecutor = Executors.newSingleThreadExecutor();
+    // Decoding a sample for an overdub, and saving it afterwards, would stall capture.
+    private final ExecutorService overdubExecutor = Executors.newSingleThreadExecutor();
+    private final int sampleRateHz = AudioConfig.getSampleRateHz();
+    private final int inputBufferSize = AudioConfig.getInputBufferSize();
+
+    // Captured audio goes straight from here through the encoder to disk, so a take never lives on
+    // the Java heap.
+    private final ByteBuffer captureBuffer = ByteBuffer.allocateDirect(inputBufferSize);
+
+    // Holds the last second of audio while armed, which covers the maximum pre-roll plus plenty of
+    // slack for slow file writes.
+    private final CaptureRingBuffer preRollBuffer =
+            new CaptureRingBuffer(sampleRateHz * PcmFormat.BYTES_PER_FRAME);
+    private final AtomicReference<Take> pendingTake = new AtomicReference<>();
+    // An overdub that's open and ready for the armed capture loop to write into.
+    private final AtomicReference<Overdub> readyOverdub = new AtomicReference<>();
+
+    private final AudioTimestamp inputTimestamp = new AudioTimestamp();
 
     private AudioRecord audioRecord;
+    private Take armedTake;
+    private volatile Overdub overdub;
+    private volatile int preRollMillis = 0;
     private volatile boolean isRecording = false;
+    private volatile boolean isArmed = false;
 
     interface RecorderCallback {
-        void onAudioRecorded(byte[] recordedBytes);
+        /**
+         * Called with a finished take, along with its {@link PeakPyramid} sidecar. The callback
+         * takes ownership of the file, and should move it into place with
+         * {@link Utils#saveRecording} or delete it.
+         */
+        void onAudioRecorded(File recordingFile);
     }
 
-    Recorder() {
+    /** A take requested while armed. Everything but the stop time belongs to the capture thread. */
+    private static class Take {
+
+        private final RecorderCallback recorderCallback;
+        // When the button was touched and let go, in System.nanoTime() time.
+        private final long startNanos;
+        private volatile long stopNanos = Long.MIN_VALUE;
+
+        private File recordingFile;
+        private FileOutputStream output;
+        private SilenceTrimmer trimmer;
+        private PeakPyramid.Builder peaks;
+        private long startPosition;
+        private long position;
+
+        private Take(RecorderCallback recorderCallback, long startNanos) {
+            this.recorderCallback = recorderCallback;
+            this.startNanos = startNanos;
+        }
+    }
+
+    Recorder(Context context, Metrics metrics) {
+        this.context = context;
+        this.metrics = metrics;
         refresh();
     }
 
-    synchronized void startRecording(RecorderCallback recorderCallback) {
+    /**
+     * Starts a new take.
+     *
+     * @param eventTimeMillis when the user asked to record, in {@link SystemClock#uptimeMillis()}
+     *     time
+     */
+    synchronized void startRecording(RecorderCallback recorderCallback, long eventTimeMillis) {
         if (isRecording) {
             Log.d(TAG, "startRecording called while another recording is in progress");
             return;
         }
 
         isRecording = true;
+        if (isArmed) {
+            // The capture loop is already running, and will pick the take up from the ring.
+            armedTake = new Take(recorderCallback, uptimeToNanoTime(eventTimeMillis));
+            pendingTake.set(armedTake);
+            return;
+        }
+
         recordExecutor.execute(() -> {
             try {
                 audioRecord.startRecording();
@@ -45,62 +128,418 @@ class Recorder {
                 return;
             }
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            byte[] buffer = new byte[Utils.MIN_BUFFER_SIZE];
-
-            // Remove a small first chunk of the recording to avoid the sound of the user tapping
-            // the button.
-            audioRecord.read(
-                    new byte[AUDIO_CUTOFF_LENGTH], 0, AUDIO_CUTOFF_LENGTH);
-
-            // Keep recording until stopRecording() is invoked.
-            while (isRecording) {
-                audioRecord.read(buffer, 0, Utils.MIN_BUFFER_SIZE);
-                output.write(buffer, 0, Utils.MIN_BUFFER_SIZE);
+            File recordingFile;
+            FileOutputStream output;
+            try {
+                recordingFile = Utils.createTempRecording(context);
+                output = new FileOutputStream(recordingFile);
+            } catch (IOException e) {
+                isRecording = false;
+                audioRecord.stop();
+                Log.e(TAG, "startRecording failed because a temp file couldn't be created");
+                return;
             }
 
+            long recordedLength = 0;
+            SilenceTrimmer trimmer = null;
+            PeakPyramid.Builder peaks = null;
             try {
-                output.flush();
-                byte[] recordedBytes = output.toByteArray();
-                output.close();
+                // Trim silence, collect the waveform and compress as we go, so the finished take is
+                // ready to play and draw as soon as we stop.
+                peaks =
+                        new PeakPyramid.Builder(
+                                new SampleCodec.Encoder(output.getChannel(), sampleRateHz));
+                trimmer = new SilenceTrimmer(peaks, sampleRateHz);
 
-                // Discard this recording if it was too short.
-                if (recordedBytes.length < MIN_RECORDING_SIZE) {
-                    return;
+                // Remove a small first chunk of the recording to avoid the sound of the user
+                // tapping the button.
+                int cutoffRemaining = AUDIO_CUTOFF_LENGTH;
+                while (cutoffRemaining > 0) {
+                    int bytesRead = audioRecord.read(
+                            captureBuffer, Math.min(cutoffRemaining, inputBufferSize));
+                    if (bytesRead <= 0) {
+                        break;
+                    }
+                    if (cutoffRemaining == AUDIO_CUTOFF_LENGTH) {
+                        metrics.touchToCaptureMicros.record(
+                                (SystemClock.uptimeMillis() - eventTimeMillis) * 1000);
+                    }
+                    cutoffRemaining -= bytesRead;
                 }
 
-                recorderCallback.onAudioRecorded(recordedBytes);
+                // Keep recording until stopRecording() is invoked, writing each chunk through to
+                // the file as it comes in.
+                while (isRecording) {
+                    int bytesRead = audioRecord.read(captureBuffer, inputBufferSize);
+                    if (bytesRead <= 0) {
+                        continue;
+                    }
+                    captureBuffer.limit(bytesRead);
+                    captureBuffer.position(0);
+                    while (captureBuffer.hasRemaining()) {
+                        recordedLength += trimmer.write(captureBuffer);
+                    }
+                    captureBuffer.clear();
+                }
+                trimmer.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error while ending a recording");
+                Log.e(TAG, "Error while writing a recording");
+                recordedLength = 0;
+            } finally {
+                audioRecord.stop();
+                closeQuietly(output);
+            }
+
+            // Discard this recording if it was too short, silent, or if it failed.
+            if (recordedLength < MIN_RECORDING_SIZE || trimmer.getFramesWritten() == 0) {
+                recordingFile.delete();
+                return;
             }
+
+            writePeaks(peaks, recordingFile);
+            recorderCallback.onAudioRecorded(recordingFile);
         });
     }
 
-    synchronized void stopRecording() {
+    /**
+     * Stops the ongoing take.
+     *
+     * @param eventTimeMillis when the user asked to stop, in {@link SystemClock#uptimeMillis()}
+     *     time. Only used while armed.
+     */
+    synchronized void stopRecording(long eventTimeMillis) {
         if (!isRecording) {
             Log.d(TAG, "stopRecording called even though no recordings are in progress");
             return;
         }
 
         // Mark ourselves as not recording so the ongoing recording knows to stop.
+        if (armedTake != null) {
+            armedTake.stopNanos = uptimeToNanoTime(eventTimeMillis);
+            armedTake = null;
+        }
+        isRecording = false;
+    }
+
+    /**
+     * Starts summing the microphone into a looping sample, until {@link #stopOverdub}. Takes the
+     * place of a take, so only one of the two can run at once. The sample is opened for writing on
+     * a worker thread, and capture only picks the overdub up once it's ready.
+     *
+     * @return whether or not the overdub was started
+     */
+    synchronized boolean startOverdub(Overdub overdub) {
+        if (isRecording) {
+            Log.d(TAG, "startOverdub called while another recording is in progress");
+            return false;
+        }
+
+        isRecording = true;
+        this.overdub = overdub;
+        overdubExecutor.execute(() -> openOverdub(overdub));
+        return true;
+    }
+
+    /**
+     * Stops an overdub started with {@link #startOverdub}. The sample saves its new take in the
+     * background.
+     */
+    synchronized void stopOverdub(Overdub overdub) {
+        if (overdub == null || this.overdub != overdub) {
+            Log.d(TAG, "stopOverdub called even though that overdub isn't in progress");
+            return;
+        }
+
+        this.overdub = null;
         isRecording = false;
     }
 
+    /**
+     * Arms or disarms the recorder. While armed, the microphone captures continuously into a ring
+     * buffer, so a take starts at the exact moment the button was touched rather than whenever the
+     * {@link AudioRecord} gets going, and can even reach back by the pre-roll.
+     */
+    synchronized void setArmed(boolean isArmed) {
+        if (this.isArmed == isArmed) {
+            return;
+        }
+
+        this.isArmed = isArmed;
+        if (isArmed) {
+            recordExecutor.execute(this::captureArmed);
+        }
+    }
+
+    /**
+     * Sets how far before the touch an armed take starts, up to {@link #MAX_PRE_ROLL_MS}. With no
+     * pre-roll, the take instead starts just after the touch so the tap itself isn't recorded.
+     */
+    synchronized void setPreRollMillis(int preRollMillis) {
+        this.preRollMillis = Math.max(0, Math.min(preRollMillis, MAX_PRE_ROLL_MS));
+    }
+
+    int getPreRollMillis() {
+        return preRollMillis;
+    }
+
     synchronized void refresh() {
+        isArmed = false;
         if (audioRecord != null) {
             audioRecord.release();
         }
         audioRecord =
                 new AudioRecord(
                         MediaRecorder.AudioSource.MIC,
-                        Utils.SAMPLE_RATE_HZ,
+                        sampleRateHz,
                         AudioFormat.CHANNEL_IN_MONO,
                         AudioFormat.ENCODING_PCM_16BIT,
-                        Utils.MIN_BUFFER_SIZE);
+                        inputBufferSize);
     }
 
     synchronized void shutdown() {
+        isArmed = false;
         recordExecutor.shutdown();
+        overdubExecutor.shutdown();
         audioRecord.release();
     }
+
+    // ------- Overdub capture -------
+
+    /** Runs on the overdub thread, and hands the opened overdub over to capture. */
+    private void openOverdub(Overdub current) {
+        current.open();
+        synchronized (this) {
+            if (overdub == current) {
+                if (isArmed) {
+                    readyOverdub.set(current);
+                } else {
+                    recordExecutor.execute(() -> captureOverdub(current));
+                }
+                return;
+            }
+        }
+        // Stopped before it was ready, so nothing was written into it.
+        current.finish();
+    }
+
+    /** Saves or drops a finished overdub, away from the capture thread. */
+    private void finishOverdub(Overdub finished) {
+        try {
+            overdubExecutor.execute(finished::finish);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, and nothing is waiting on the capture thread any more.
+            finished.finish();
+        }
+    }
+
+    private void captureOverdub(Overdub current) {
+        try {
+            audioRecord.startRecording();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "startOverdub failed because the AudioRecord was uninitialized");
+            stopOverdub(current);
+            finishOverdub(current);
+            return;
+        }
+
+        long framesCaptured = 0;
+        while (overdub == current) {
+            int bytesRead = audioRecord.read(captureBuffer, inputBufferSize);
+            if (bytesRead < 0) {
+                Log.e(TAG, "Overdub stopped because the AudioRecord failed");
+                break;
+            }
+            framesCaptured += bytesRead / PcmFormat.BYTES_PER_FRAME;
+            captureBuffer.limit(bytesRead);
+            current.write(captureBuffer, getCaptureNanos(framesCaptured));
+            captureBuffer.clear();
+        }
+
+        audioRecord.stop();
+        finishOverdub(current);
+    }
+
+    /**
+     * Works out when the given frame of the current capture reached the microphone, in
+     * {@link System#nanoTime()} time. Without a timestamp from the input, assumes the frame just
+     * read sat in the input buffer for as long as the buffer holds.
+     */
+    private long getCaptureNanos(long frame) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && audioRecord.getTimestamp(inputTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                        == AudioRecord.SUCCESS) {
+            return inputTimestamp.nanoTime
+                    + (frame - inputTimestamp.framePosition) * 1000000000L / sampleRateHz;
+        }
+        long bufferFrames = inputBufferSize / PcmFormat.BYTES_PER_FRAME;
+        return System.nanoTime() - bufferFrames * 1000000000L / sampleRateHz;
+    }
+
+    // ------- Armed capture -------
+
+    /** Captures into the ring until disarmed, writing out any takes that come in along the way. */
+    private void captureArmed() {
+        try {
+            audioRecord.startRecording();
+        } catch (IllegalStateException e) {
+            isArmed = false;
+            Log.e(TAG, "setArmed failed because the AudioRecord was uninitialized");
+            return;
+        }
+
+        Take take = null;
+        Overdub activeOverdub = null;
+        long framesCaptured = 0;
+        while (isArmed
+                || take != null
+                || pendingTake.get() != null
+                || overdub != null
+                || activeOverdub != null
+                || readyOverdub.get() != null) {
+            int bytesRead = audioRecord.read(captureBuffer, inputBufferSize);
+            if (bytesRead < 0) {
+                Log.e(TAG, "Armed capture stopped because the AudioRecord failed");
+                break;
+            }
+            framesCaptured += bytesRead / PcmFormat.BYTES_PER_FRAME;
+            captureBuffer.limit(bytesRead);
+
+            Overdub openedOverdub = readyOverdub.getAndSet(null);
+            if (openedOverdub != null) {
+                activeOverdub = openedOverdub;
+            }
+            if (activeOverdub != null && activeOverdub != overdub) {
+                finishOverdub(activeOverdub);
+                activeOverdub = null;
+            }
+            if (activeOverdub != null) {
+                activeOverdub.write(captureBuffer, getCaptureNanos(framesCaptured));
+                captureBuffer.position(0);
+            }
+
+            preRollBuffer.write(captureBuffer);
+            captureBuffer.clear();
+            // When the end of the ring reached the microphone, allowing for input latency.
+            long captureNanos = getCaptureNanos(framesCaptured);
+
+            if (take == null) {
+                take = pendingTake.getAndSet(null);
+                if (take != null && !openTake(take, captureNanos)) {
+                    take = null;
+                }
+            }
+            if (take != null && writeTake(take, captureNanos)) {
+                take = null;
+            }
+        }
+
+        audioRecord.stop();
+        if (take != null) {
+            discardTake(take);
+        }
+        if (activeOverdub != null) {
+            finishOverdub(activeOverdub);
+        }
+    }
+
+    private boolean openTake(Take take, long captureNanos) {
+        try {
+            take.recordingFile = Utils.createTempRecording(context);
+            take.output = new FileOutputStream(take.recordingFile);
+            take.peaks =
+                    new PeakPyramid.Builder(
+                            new SampleCodec.Encoder(take.output.getChannel(), sampleRateHz));
+            take.trimmer = new SilenceTrimmer(take.peaks, sampleRateHz);
+        } catch (IOException e) {
+            Log.e(TAG, "startRecording failed because a temp file couldn't be created");
+            return false;
+        }
+
+        long startPosition = positionAt(take.startNanos, captureNanos);
+        if (preRollMillis > 0) {
+            startPosition -= millisToBytes(preRollMillis);
+        } else {
+            startPosition += millisToBytes(TOUCH_NOISE_MS);
+        }
+        take.startPosition = Math.max(startPosition, preRollBuffer.getOldestPosition());
+        take.position = take.startPosition;
+        return true;
+    }
+
+    /**
+     * Writes whatever part of the take has been captured so far.
+     *
+     * @return whether or not the take is finished
+     */
+    private boolean writeTake(Take take, long captureNanos) {
+        long stopNanos = take.stopNanos;
+        long stopPosition =
+                stopNanos == Long.MIN_VALUE
+                        ? Long.MAX_VALUE
+                        : positionAt(stopNanos, captureNanos);
+
+        try {
+            take.position = preRollBuffer.drainTo(
+                    take.position, stopPosition, take.trimmer);
+            if (take.position < stopPosition) {
+                return false;
+            }
+            take.trimmer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error while writing a recording");
+            discardTake(take);
+            return true;
+        }
+
+        if (take.position - take.startPosition < MIN_RECORDING_SIZE
+                || take.trimmer.getFramesWritten() == 0) {
+            // Discard this recording if it was too short, or silent.
+            take.recordingFile.delete();
+        } else {
+            writePeaks(take.peaks, take.recordingFile);
+            take.recorderCallback.onAudioRecorded(take.recordingFile);
+        }
+        return true;
+    }
+
+    private void discardTake(Take take) {
+        closeQuietly(take.output);
+        take.recordingFile.delete();
+    }
+
+    /** Saves a take's waveform next to it. Without one, the waveform is just rebuilt on load. */
+    private static void writePeaks(PeakPyramid.Builder peaks, File recordingFile) {
+        try {
+            peaks.build().write(PeakPyramid.sidecarFor(recordingFile));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the waveform for a recording");
+        }
+    }
+
+    /**
+     * Works out where in the ring a moment in time landed, to the frame.
+     *
+     * @param captureNanos when the frame at the ring's write position reached the microphone
+     */
+    private long positionAt(long nanoTime, long captureNanos) {
+        long frames = (captureNanos - nanoTime) * sampleRateHz / 1000000000L;
+        return preRollBuffer.getWritePosition() - frames * PcmFormat.BYTES_PER_FRAME;
+    }
+
+    /** Converts a {@link SystemClock#uptimeMillis()} time, like a touch's, to nanoTime time. */
+    private static long uptimeToNanoTime(long uptimeMillis) {
+        return System.nanoTime() - (SystemClock.uptimeMillis() - uptimeMillis) * 1000000L;
+    }
+
+    private long millisToBytes(long millis) {
+        return PcmFormat.millisToFrames(millis, sampleRateHz) * PcmFormat.BYTES_PER_FRAME;
+    }
+
+    private static void closeQuietly(FileOutputStream output) {
+        try {
+            output.close();
+        } catch (IOException e) {
+            // Ignore. The stream is being thrown away anyway.
+        }
+    }
 }
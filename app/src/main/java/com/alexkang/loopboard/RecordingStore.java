@@ -0,0 +1,149 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves finished takes into place on a dedicated I/O thread, so neither the recorder nor playback
+ * ever waits on the disk. Every take goes through {@link Utils#saveRecording}, so a crash at any
+ * point leaves either the old recording or the new one, never part of either.
+ *
+ * <p>Saves are coalesced per recording: if a sample is re-recorded again before its last take has
+ * been written, only the newest take is kept, and the take it displaced is reported as failed.
+ * Every callback hears back exactly once. The backlog is bounded, and a save that doesn't fit is
+ * dropped and reported as failed rather than making the caller wait.
+ */
+class RecordingStore {
+
+    private static final String TAG = "RecordingStore";
+    private static final int MAX_PENDING_SAVES = 8;
+
+    private final Context context;
+    private final ExecutorService ioExecutor =
+            new ThreadPoolExecutor(
+                    1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_PENDING_SAVES));
+
+    // Takes waiting to be written, by recording name. Guarded by itself.
+    private final Map<String, PendingSave> pendingSaves = new HashMap<>();
+
+    interface SaveCallback {
+        /**
+         * Called on the I/O thread once the take is in place, or has been given up on. A take
+         * that's dropped straight away is reported on the thread that tried to save it.
+         */
+        void onSaveFinished(boolean isSaved);
+    }
+
+    private static class PendingSave {
+
+        private final File recordingFile;
+        private final SaveCallback saveCallback;
+        // What the recording has to look like for this save to go ahead, or -1 for anything.
+        private final long expectedLength;
+        private final long expectedLastModified;
+
+        private PendingSave(
+                File recordingFile,
+                SaveCallback saveCallback,
+                long expectedLength,
+                long expectedLastModified) {
+            this.recordingFile = recordingFile;
+            this.saveCallback = saveCallback;
+            this.expectedLength = expectedLength;
+            this.expectedLastModified = expectedLastModified;
+        }
+    }
+
+    RecordingStore(Context context) {
+        this.context = context;
+    }
+
+    /** Saves a take under the given name, replacing whatever is there. Never blocks. */
+    void save(String name, File recordingFile, SaveCallback saveCallback) {
+        enqueue(name, new PendingSave(recordingFile, saveCallback, -1, -1));
+    }
+
+    /**
+     * Replaces a recording only if it hasn't changed since it was last looked at, by size and
+     * modification time. Anything already waiting to be saved under the same name wins, since it's
+     * newer than what this replacement was made from. Never blocks.
+     */
+    void replace(
+            String name,
+            File recordingFile,
+            long expectedLength,
+            long expectedLastModified,
+            SaveCallback saveCallback) {
+        enqueue(
+                name,
+                new PendingSave(recordingFile, saveCallback, expectedLength, expectedLastModified));
+    }
+
+    /** Finishes writing anything already queued, then stops the I/O thread. */
+    void shutdown() {
+        ioExecutor.shutdown();
+    }
+
+    // ------- Private methods -------
+
+    private void enqueue(String name, PendingSave pendingSave) {
+        PendingSave dropped = pendingSave;
+        synchronized (pendingSaves) {
+            PendingSave previous = pendingSaves.get(name);
+            if (previous == null) {
+                pendingSaves.put(name, pendingSave);
+                try {
+                    ioExecutor.execute(() -> write(name));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, String.format("Too many saves queued, dropping a take of %s", name));
+                    pendingSaves.remove(name);
+                }
+            } else if (pendingSave.expectedLength < 0) {
+                // The queued write will pick up this take instead.
+                pendingSaves.put(name, pendingSave);
+                dropped = previous;
+            }
+        }
+        // Outside the lock, since callbacks may take locks of their own.
+        discard(dropped);
+    }
+
+    /** Runs on the I/O thread. */
+    private void write(String name) {
+        PendingSave pendingSave;
+        synchronized (pendingSaves) {
+            pendingSave = pendingSaves.remove(name);
+        }
+        if (pendingSave == null) {
+            return;
+        }
+
+        if (pendingSave.expectedLength >= 0) {
+            File destination = context.getFileStreamPath(name);
+            if (destination.length() != pendingSave.expectedLength
+                    || destination.lastModified() != pendingSave.expectedLastModified) {
+                // A new take was saved since this replacement was made.
+                discard(pendingSave);
+                return;
+            }
+        }
+        pendingSave.saveCallback.onSaveFinished(
+                Utils.saveRecording(context, name, pendingSave.recordingFile));
+    }
+
+    private static void discard(PendingSave pendingSave) {
+        Utils.deleteRecording(pendingSave.recordingFile);
+        pendingSave.saveCallback.onSaveFinished(false);
+    }
+}
@@ -1,14 +1,85 @@
 package com.alexkang.loopboard;
 
+import com.alexkang.loopboard.core.EffectSettings;
+import com.alexkang.loopboard.core.PeakPyramid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 abstract class Sample {
 
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id = nextId.getAndIncrement();
+    private volatile SampleListener sampleListener;
+
+    /** Hears about changes to a sample that its row on the board should show. */
+    interface SampleListener {
+        /** Called on whichever thread started or stopped the sample. */
+        void onPlaybackChanged(Sample sample);
+
+        /** Called on whichever thread swapped in the sample's new audio. */
+        void onAudioChanged(Sample sample);
+    }
+
+    /** Unique among every sample created since the app started, so rows can be told apart. */
+    long getId() {
+        return id;
+    }
+
+    void setSampleListener(SampleListener sampleListener) {
+        this.sampleListener = sampleListener;
+    }
+
     abstract String getName();
 
-    abstract void play(boolean isLooped);
+    /**
+     * Plays the sample from the top.
+     *
+     * @param requestNanos when playback was asked for, from {@link System#nanoTime()}
+     */
+    abstract void play(boolean isLooped, long requestNanos);
 
     abstract void stop();
 
+    /**
+     * Gets the sample ready to play without delay, typically because its bank has come on screen.
+     * Playing a sample that wasn't prepared works too, it just does this first.
+     */
+    abstract void prepare();
+
+    /**
+     * Tidies up after a one-shot finished on its own, unless the sample has been played again
+     * since. Called on the {@link PlaybackController}'s thread.
+     */
+    void onPlaybackComplete() {}
+
+    /** Never blocks, so it's safe to check from the UI thread. */
     abstract boolean isLooping();
 
+    abstract EffectSettings getEffects();
+
+    /**
+     * Changes how the sample sounds, including while it plays. Never blocks, so it's safe to call
+     * from the UI thread every time a slider moves.
+     */
+    abstract void setEffects(EffectSettings effects);
+
+    /** The sample's waveform, or null if there isn't one to draw. */
+    abstract PeakPyramid getPeaks();
+
     abstract void shutdown();
+
+    void notifyPlaybackChanged() {
+        SampleListener listener = sampleListener;
+        if (listener != null) {
+            listener.onPlaybackChanged(this);
+        }
+    }
+
+    void notifyAudioChanged() {
+        SampleListener listener = sampleListener;
+        if (listener != null) {
+            listener.onAudioChanged(this);
+        }
+    }
 }
@@ -0,0 +1,264 @@
+package com.alexkang.loopboard;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.PcmFormat;
+import com.alexkang.loopboard.core.SampleCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps fully decoded copies of recently played samples within a fixed memory budget. Samples
+ * always have their compressed, memory-mapped file to fall back on, so anything that isn't cached
+ * still plays. It just costs a block decode on the audio thread now and then. Decoded copies live
+ * in direct buffers off the Java heap, and the least recently played ones are evicted first, except
+ * for samples that are currently playing, which stay pinned.
+ */
+class SampleCache {
+
+    private static final String TAG = "SampleCache";
+    private static final int BYTES_PER_MEGABYTE = 1024 * 1024;
+    private static final int DECODE_CHUNK_FRAMES = 4096;
+
+    // Decoded audio may use up to this fraction of the app's memory class.
+    private static final int BUDGET_DIVISOR = 4;
+
+    interface CachedSample {
+        /** The mapped file to decode into the cache, or null if it isn't worth caching. */
+        ByteBuffer getCacheSource();
+
+        /** Returns whether or not the sample is playing, in which case it's never evicted. */
+        boolean isPinned();
+
+        /**
+         * Called when a decoded copy of {@code source} becomes resident, or with a null
+         * {@code pcm} once it has been evicted. Never called while the cache is locked.
+         */
+        void onResidentPcmChanged(ByteBuffer source, ShortBuffer pcm);
+    }
+
+    private static class Entry {
+
+        private final ByteBuffer source;
+        private final ShortBuffer pcm;
+
+        private Entry(ByteBuffer source, ShortBuffer pcm) {
+            this.source = source;
+            this.pcm = pcm;
+        }
+
+        private long getSizeBytes() {
+            return (long) pcm.capacity() * PcmFormat.BYTES_PER_FRAME;
+        }
+    }
+
+    private final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+
+    // In access order, so iteration starts from the least recently played sample.
+    private final LinkedHashMap<CachedSample, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<CachedSample> pendingSamples = new HashSet<>();
+
+    private long budgetBytes = 0;
+    private long sizeBytes = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+    private boolean isShutdown = false;
+
+    /** The default budget for this device, derived from its memory class. */
+    static long getDefaultBudgetBytes(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (long) activityManager.getMemoryClass() * BYTES_PER_MEGABYTE / BUDGET_DIVISOR;
+    }
+
+    /** Sets how many bytes of decoded audio may be resident, evicting anything over budget. */
+    void setBudgetBytes(long budgetBytes) {
+        List<Map.Entry<CachedSample, Entry>> evicted;
+        synchronized (this) {
+            this.budgetBytes = budgetBytes;
+            evicted = trim(budgetBytes);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Records that a sample is about to play. On a miss, the sample is decoded in the background
+     * and swapped in once it's ready.
+     */
+    void onPlay(CachedSample sample) {
+        synchronized (this) {
+            if (entries.get(sample) != null) {
+                hitCount++;
+                return;
+            }
+            missCount++;
+            if (isShutdown || !pendingSamples.add(sample)) {
+                return;
+            }
+        }
+        decodeExecutor.execute(() -> decode(sample));
+    }
+
+    /** Drops a sample's decoded copy, typically because its file has changed. */
+    synchronized void remove(CachedSample sample) {
+        Entry entry = entries.remove(sample);
+        if (entry != null) {
+            sizeBytes -= entry.getSizeBytes();
+        }
+    }
+
+    /** Gives memory back when the system asks for it. */
+    void onTrimMemory(int level) {
+        long targetBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            targetBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            targetBytes = budgetBytes / 2;
+        } else {
+            return;
+        }
+
+        List<Map.Entry<CachedSample, Entry>> evicted;
+        synchronized (this) {
+            evicted = trim(targetBytes);
+        }
+        notifyEvicted(evicted);
+    }
+
+    synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    synchronized int getMissCount() {
+        return missCount;
+    }
+
+    synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            isShutdown = true;
+            entries.clear();
+            pendingSamples.clear();
+            sizeBytes = 0;
+        }
+        decodeExecutor.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "SampleCache[%d/%d KB, %d hits, %d misses, %d evictions]",
+                sizeBytes / 1024,
+                budgetBytes / 1024,
+                hitCount,
+                missCount,
+                evictionCount);
+    }
+
+    // ------- Private methods -------
+
+    private void decode(CachedSample sample) {
+        ByteBuffer source = sample.getCacheSource();
+        ShortBuffer pcm = source == null ? null : decodeFully(source);
+
+        List<Map.Entry<CachedSample, Entry>> evicted;
+        synchronized (this) {
+            pendingSamples.remove(sample);
+            if (isShutdown || pcm == null) {
+                return;
+            }
+
+            Entry entry = new Entry(source, pcm);
+            entries.put(sample, entry);
+            sizeBytes += entry.getSizeBytes();
+            evicted = trim(budgetBytes);
+        }
+        notifyEvicted(evicted);
+
+        // Only hand the copy over if it didn't get evicted straight away.
+        synchronized (this) {
+            if (entries.get(sample) == null) {
+                return;
+            }
+        }
+        sample.onResidentPcmChanged(source, pcm);
+    }
+
+    private ShortBuffer decodeFully(ByteBuffer source) {
+        SampleCodec.Decoder decoder = new SampleCodec.Decoder(source);
+        long sizeBytes = (long) decoder.getFrameCount() * PcmFormat.BYTES_PER_FRAME;
+        if (sizeBytes > getBudgetBytes()) {
+            // Too big to ever fit, so leave it on disk.
+            return null;
+        }
+
+        ShortBuffer pcm =
+                ByteBuffer.allocateDirect((int) sizeBytes)
+                        .order(ByteOrder.nativeOrder())
+                        .asShortBuffer();
+        short[] chunk = new short[DECODE_CHUNK_FRAMES];
+        int framesRead;
+        while ((framesRead = decoder.read(chunk, 0, chunk.length)) > 0) {
+            pcm.put(chunk, 0, framesRead);
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    /** Evicts unpinned entries, least recently played first, until we're within the target. */
+    private List<Map.Entry<CachedSample, Entry>> trim(long targetBytes) {
+        List<Map.Entry<CachedSample, Entry>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<CachedSample, Entry>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > targetBytes && iterator.hasNext()) {
+            Map.Entry<CachedSample, Entry> entry = iterator.next();
+            if (entry.getKey().isPinned()) {
+                continue;
+            }
+
+            iterator.remove();
+            sizeBytes -= entry.getValue().getSizeBytes();
+            evictionCount++;
+            evicted.add(entry);
+        }
+        if (sizeBytes > targetBytes) {
+            Log.d(TAG, "Over budget because too many samples are playing: " + this);
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Map.Entry<CachedSample, Entry>> evicted) {
+        for (Map.Entry<CachedSample, Entry> entry : evicted) {
+            entry.getKey().onResidentPcmChanged(entry.getValue().source, null);
+        }
+    }
+}
@@ -2,122 +2,285 @@ package com.alexkang.loopboard;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.design.widget.Snackbar;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-public class SampleListAdapter extends BaseAdapter {
+/**
+ * Shows the samples in the board's current bank. Changes to the list are diffed, so loading or
+ * removing one sample only touches its own row, and a sample starting, stopping or getting new
+ * audio only rebinds the part of its row that shows that.
+ */
+public class SampleListAdapter extends RecyclerView.Adapter<SampleListAdapter.SampleViewHolder>
+        implements Sample.SampleListener {
+
+    private static final Object PAYLOAD_PLAYBACK = new Object();
+    private static final Object PAYLOAD_WAVEFORM = new Object();
 
     private final Context context;
     private final Recorder recorder;
-    private final List<ImportedSample> importedSamples;
-    private final List<RecordedSample> recordedSamples;
+    private final PlaybackController playbackController;
+    private final RecordingStore recordingStore;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the UI thread.
+    private List<Sample> samples = new ArrayList<>();
+    private boolean isOverdubEnabled = false;
 
     SampleListAdapter(
             Context context,
             Recorder recorder,
-            List<ImportedSample> importedSamples,
-            List<RecordedSample> recordedSamples) {
+            PlaybackController playbackController,
+            RecordingStore recordingStore) {
         this.context = context;
         this.recorder = recorder;
-        this.importedSamples = importedSamples;
-        this.recordedSamples = recordedSamples;
+        this.playbackController = playbackController;
+        this.recordingStore = recordingStore;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Sets whether holding the rerecord button on a looping sample overdubs it, rather than
+     * replacing it. UI thread only.
+     */
+    void setOverdubEnabled(boolean isOverdubEnabled) {
+        this.isOverdubEnabled = isOverdubEnabled;
+    }
+
+    /** Replaces the samples on screen, updating only the rows that changed. UI thread only. */
+    void setSamples(List<? extends Sample> bankSamples) {
+        List<Sample> oldSamples = samples;
+        List<Sample> newSamples = new ArrayList<>(bankSamples);
+
+        DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldSamples.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newSamples.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldSamples.get(oldPosition).getId() == newSamples.get(newPosition).getId();
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                // Same ID means same sample, and its own changes arrive through the listener.
+                return true;
+            }
+        }, false);
+
+        Set<Sample> removedSamples = new HashSet<>(oldSamples);
+        removedSamples.removeAll(newSamples);
+        for (Sample sample : removedSamples) {
+            sample.setSampleListener(null);
+        }
+        for (Sample sample : newSamples) {
+            sample.setSampleListener(this);
+        }
+
+        samples = newSamples;
+        diffResult.dispatchUpdatesTo(this);
     }
 
+    // ------- RecyclerView.Adapter -------
+
     @Override
-    public int getCount() {
-        return importedSamples.size() + recordedSamples.size();
+    public SampleViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new SampleViewHolder(
+                LayoutInflater.from(context).inflate(R.layout.sound_clip_row, parent, false));
     }
 
     @Override
-    public Sample getItem(int position) {
-        if (position < importedSamples.size()) {
-            return importedSamples.get(position);
-        } else if (position - importedSamples.size() < recordedSamples.size()) {
-            return recordedSamples.get(position - importedSamples.size());
-        } else {
-            return null;
+    public void onBindViewHolder(SampleViewHolder holder, int position) {
+        holder.bind(samples.get(position));
+    }
+
+    @Override
+    public void onBindViewHolder(SampleViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_PLAYBACK) {
+                holder.bindPlayback();
+            } else if (payload == PAYLOAD_WAVEFORM) {
+                holder.bindWaveform();
+            }
         }
     }
 
+    @Override
+    public int getItemCount() {
+        return samples.size();
+    }
+
     @Override
     public long getItemId(int position) {
-        return position;
+        return samples.get(position).getId();
     }
 
+    // ------- Sample.SampleListener -------
+
     @Override
-    @SuppressLint("ClickableViewAccessibility")
-    public View getView(final int position, View convertView, ViewGroup parent) {
-        Sample sample = getItem(position);
-        if (sample == null) {
-            return convertView;
-        }
+    public void onPlaybackChanged(Sample sample) {
+        uiHandler.post(() -> notifySampleChanged(sample, PAYLOAD_PLAYBACK));
+    }
 
-        if (convertView == null) {
-            convertView =
-                    LayoutInflater
-                            .from(context)
-                            .inflate(R.layout.sound_clip_row, parent, false);
-        }
+    @Override
+    public void onAudioChanged(Sample sample) {
+        uiHandler.post(() -> notifySampleChanged(sample, PAYLOAD_WAVEFORM));
+    }
+
+    // ------- Private methods -------
 
-        Button stopButton = convertView.findViewById(R.id.stop);
-        Button rerecordButton = convertView.findViewById(R.id.rerecord);
-        CheckBox loopButton = convertView.findViewById(R.id.loop);
-        Button playButton = convertView.findViewById(R.id.play);
-
-        // Update the state of the loop button.
-        loopButton.setChecked(sample.isLooping());
-
-        // Choose which buttons to show.
-        if (sample instanceof ImportedSample) {
-            // Show the stop button and hide the rerecord button.
-            stopButton.setVisibility(View.VISIBLE);
-            rerecordButton.setVisibility(View.GONE);
-        } else {
-            // Hide the stop button and show the rerecord button.
-            stopButton.setVisibility(View.GONE);
-            rerecordButton.setVisibility(View.VISIBLE);
+    private void notifySampleChanged(Sample sample, Object payload) {
+        int position = samples.indexOf(sample);
+        if (position >= 0) {
+            notifyItemChanged(position, payload);
         }
+    }
 
-        // Set button listeners.
-        playButton.setText(sample.getName());
-        playButton.setOnClickListener(v -> {
-            if (sample.isLooping()) {
-                loopButton.setChecked(false);
-            }
-            sample.play(false);
-        });
-        stopButton.setOnClickListener(v -> {
-            loopButton.setChecked(false);
-            sample.stop();
-        });
-        rerecordButton.setOnTouchListener((view, motionEvent) -> {
-            int action = motionEvent.getAction();
-            if (action == MotionEvent.ACTION_DOWN) {
-                view.setPressed(true);
-                recorder.startRecording(
-                        recordedBytes -> ((RecordedSample) sample).save(context, recordedBytes));
-            } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
-                view.setPressed(false);
-                recorder.stopRecording();
+    /** One row of the board. Its listeners are set once and act on whichever sample is bound. */
+    class SampleViewHolder extends RecyclerView.ViewHolder {
+
+        private final Button stopButton;
+        private final Button rerecordButton;
+        private final CheckBox loopButton;
+        private final Button playButton;
+        private final WaveformView waveformView;
+
+        private Sample sample;
+        private boolean isBinding = false;
+        // Set while the rerecord button is held in overdub mode, along with the overdub this row
+        // started, if the recorder took it.
+        private boolean isOverdubTouch = false;
+        private Overdub overdub;
+
+        @SuppressLint("ClickableViewAccessibility")
+        SampleViewHolder(View itemView) {
+            super(itemView);
+            stopButton = itemView.findViewById(R.id.stop);
+            rerecordButton = itemView.findViewById(R.id.rerecord);
+            loopButton = itemView.findViewById(R.id.loop);
+            playButton = itemView.findViewById(R.id.play);
+            waveformView = itemView.findViewById(R.id.waveform);
+
+            // Set button listeners.
+            playButton.setOnClickListener(v -> {
+                if (loopButton.isChecked()) {
+                    loopButton.setChecked(false);
+                }
+                playbackController.play(sample, false);
+            });
+            playButton.setOnLongClickListener(v -> {
+                EffectsDialog.show(context, sample);
+                return true;
+            });
+            stopButton.setOnClickListener(v -> {
                 loopButton.setChecked(false);
-            }
-            return true;
-        });
-        loopButton.setOnCheckedChangeListener((buttonView, isChecked) -> {
-            if (isChecked) {
-                sample.play(true);
+                playbackController.stop(sample);
+            });
+            rerecordButton.setOnTouchListener((view, motionEvent) -> {
+                int action = motionEvent.getAction();
+                if (action == MotionEvent.ACTION_DOWN) {
+                    view.setPressed(true);
+                    RecordedSample recordedSample = (RecordedSample) sample;
+                    isOverdubTouch = isOverdubEnabled && sample.isLooping();
+                    if (isOverdubTouch) {
+                        if (!recordedSample.canOverdub()) {
+                            Snackbar.make(
+                                    itemView,
+                                    R.string.error_overdub_length,
+                                    Snackbar.LENGTH_SHORT).show();
+                            return true;
+                        }
+                        Overdub newOverdub = new Overdub(context, recordedSample, recordingStore);
+                        overdub = recorder.startOverdub(newOverdub) ? newOverdub : null;
+                        return true;
+                    }
+                    recorder.startRecording(
+                            recordingFile ->
+                                    recordedSample.save(context, recordingStore, recordingFile),
+                            motionEvent.getEventTime());
+                } else if (action == MotionEvent.ACTION_UP
+                        || action == MotionEvent.ACTION_CANCEL) {
+                    view.setPressed(false);
+                    if (isOverdubTouch) {
+                        // The loop carries on, with the new part in it.
+                        if (overdub != null) {
+                            recorder.stopOverdub(overdub);
+                            overdub = null;
+                        }
+                        isOverdubTouch = false;
+                        return true;
+                    }
+                    recorder.stopRecording(motionEvent.getEventTime());
+                    loopButton.setChecked(false);
+                }
+                return true;
+            });
+            loopButton.setOnCheckedChangeListener((buttonView, isChecked) -> {
+                // Rebinding sets the box to match the sample, which needs nothing from us.
+                if (isBinding) {
+                    return;
+                }
+                if (isChecked) {
+                    playbackController.play(sample, true);
+                } else {
+                    playbackController.stop(sample);
+                }
+            });
+        }
+
+        private void bind(Sample sample) {
+            this.sample = sample;
+            playButton.setText(sample.getName());
+
+            // Choose which buttons to show.
+            if (sample instanceof ImportedSample) {
+                // Show the stop button and hide the rerecord button.
+                stopButton.setVisibility(View.VISIBLE);
+                rerecordButton.setVisibility(View.GONE);
             } else {
-                sample.stop();
+                // Hide the stop button and show the rerecord button.
+                stopButton.setVisibility(View.GONE);
+                rerecordButton.setVisibility(View.VISIBLE);
             }
-        });
 
-        return convertView;
+            bindPlayback();
+            bindWaveform();
+        }
+
+        private void bindPlayback() {
+            isBinding = true;
+            loopButton.setChecked(sample.isLooping());
+            isBinding = false;
+        }
+
+        private void bindWaveform() {
+            // Peaks are loaded with the sample, so this never touches the audio.
+            waveformView.setPeaks(sample.getPeaks());
+        }
     }
 }
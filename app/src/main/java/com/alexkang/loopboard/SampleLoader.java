@@ -0,0 +1,369 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.alexkang.loopboard.core.BoardPack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads the samples on the board without blocking the UI thread. Directory scans and sample loads
+ * run on a small worker pool, and each sample is published back on the UI thread as soon as it's
+ * ready. Samples whose files haven't changed since they were last loaded, by size and modification
+ * time, are left alone.
+ *
+ * <p>Imported samples come from an {@link ImportIndex}, which watches the import folder, so only
+ * the files that are added, removed or changed there are ever looked at again.
+ *
+ * <p>On a cold start, recorded samples are first opened straight out of the {@link BoardPacker}'s
+ * pack, with a single open and map, and the scan that follows only loads the ones whose files have
+ * changed since they were packed.
+ */
+class SampleLoader {
+
+    private static final String TAG = "SampleLoader";
+    private static final int MAX_LOADER_THREADS = 4;
+    // What opening the pack is called in the load times.
+    private static final String PACK_LOAD_NAME = "(board pack)";
+
+    private final Context context;
+    private final AudioEngine audioEngine;
+    private final SampleCache sampleCache;
+    private final Metrics metrics;
+    private final PlaybackController playbackController;
+    private final RecordingStore recordingStore;
+    private final BoardPacker boardPacker;
+    private final LoaderCallback loaderCallback;
+    private final ImportIndex importIndex;
+    private final AtomicBoolean isImportChangePending = new AtomicBoolean();
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService loadExecutor =
+            Executors.newFixedThreadPool(
+                    Math.max(
+                            1,
+                            Math.min(
+                                    MAX_LOADER_THREADS,
+                                    Runtime.getRuntime().availableProcessors() - 1)));
+
+    // Everything below is only touched on the UI thread.
+    private final Map<File, LoadedSample> loadedSamples = new HashMap<>();
+    private final Set<File> pendingFiles = new HashSet<>();
+    private boolean hasOpenedPack = false;
+    private boolean isShutdown = false;
+
+    interface LoaderCallback {
+        /** Called on the UI thread when a new sample is ready to be played. */
+        void onSampleLoaded(Sample sample);
+
+        /** Called on the UI thread when a sample's file is gone. The sample is being shut down. */
+        void onSampleRemoved(Sample sample);
+    }
+
+    /** A published sample along with the state of its file at the time it was loaded. */
+    private static class LoadedSample {
+
+        private final Sample sample;
+        private final FileStamp fileStamp;
+
+        private LoadedSample(Sample sample, FileStamp fileStamp) {
+            this.sample = sample;
+            this.fileStamp = fileStamp;
+        }
+    }
+
+    SampleLoader(
+            Context context,
+            AudioEngine audioEngine,
+            SampleCache sampleCache,
+            Metrics metrics,
+            PlaybackController playbackController,
+            RecordingStore recordingStore,
+            BoardPacker boardPacker,
+            LoaderCallback loaderCallback) {
+        this.context = context;
+        this.audioEngine = audioEngine;
+        this.sampleCache = sampleCache;
+        this.metrics = metrics;
+        this.playbackController = playbackController;
+        this.recordingStore = recordingStore;
+        this.boardPacker = boardPacker;
+        this.loaderCallback = loaderCallback;
+        importIndex = new ImportIndex(context, this::onImportsChanged);
+    }
+
+    /** Rescans the board in the background and loads anything that's new or changed. */
+    void refresh() {
+        boolean shouldOpenPack = !hasOpenedPack;
+        hasOpenedPack = true;
+        loadExecutor.execute(() -> {
+            if (shouldOpenPack) {
+                openPackedSamples();
+            }
+
+            // Only reads the disk the first time, or until storage permission is granted.
+            List<FileStamp> importedFiles = importIndex.open();
+            importIndex.save();
+            List<FileStamp> recordedFiles = new ArrayList<>();
+            for (String fileName : context.fileList()) {
+                if (!Utils.isSidecarFile(fileName)) {
+                    recordedFiles.add(new FileStamp(context.getFileStreamPath(fileName)));
+                }
+            }
+            uiHandler.post(() -> reconcile(importedFiles, recordedFiles));
+        });
+    }
+
+    /** Stops loading, and shuts down every sample that has been published. */
+    void shutdown() {
+        isShutdown = true;
+        importIndex.close();
+        loadExecutor.shutdownNow();
+        for (LoadedSample loadedSample : loadedSamples.values()) {
+            playbackController.remove(loadedSample.sample);
+        }
+        loadedSamples.clear();
+    }
+
+    // ------- Private methods -------
+
+    /** Called on the watching thread. Bursts of changes are picked up together. */
+    private void onImportsChanged() {
+        if (!isImportChangePending.compareAndSet(false, true)) {
+            return;
+        }
+        uiHandler.post(() -> {
+            isImportChangePending.set(false);
+            if (isShutdown) {
+                return;
+            }
+            reconcileFiles(importIndex.getFiles(), true);
+            loadExecutor.execute(importIndex::save);
+        });
+    }
+
+    /** Compares a fresh directory scan against what's loaded. Runs on the UI thread. */
+    private void reconcile(List<FileStamp> importedFiles, List<FileStamp> recordedFiles) {
+        if (isShutdown) {
+            return;
+        }
+        reconcileFiles(importedFiles, true);
+        reconcileFiles(recordedFiles, false);
+    }
+
+    /**
+     * Compares the current files of one kind, imported or recorded, against the samples of that
+     * kind that are loaded. Runs on the UI thread.
+     */
+    private void reconcileFiles(List<FileStamp> files, boolean isImported) {
+        // Drop any sample whose file has disappeared.
+        Set<File> currentFiles = new HashSet<>();
+        for (FileStamp fileStamp : files) {
+            currentFiles.add(fileStamp.file);
+        }
+        Iterator<Map.Entry<File, LoadedSample>> iterator = loadedSamples.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, LoadedSample> entry = iterator.next();
+            Sample sample = entry.getValue().sample;
+            if ((sample instanceof ImportedSample) != isImported
+                    || currentFiles.contains(entry.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            if (sample instanceof RecordedSample) {
+                boardPacker.remove(sample.getName());
+            }
+            removeSample(sample);
+        }
+
+        for (FileStamp fileStamp : files) {
+            LoadedSample loadedSample = loadedSamples.get(fileStamp.file);
+            if (pendingFiles.contains(fileStamp.file)
+                    || (loadedSample != null && loadedSample.fileStamp.matches(fileStamp))) {
+                continue;
+            }
+
+            pendingFiles.add(fileStamp.file);
+            if (isImported) {
+                loadExecutor.execute(() -> loadImportedSample(fileStamp.file, loadedSample));
+            } else {
+                loadExecutor.execute(() -> loadRecordedSample(fileStamp.file, loadedSample));
+            }
+        }
+    }
+
+    /**
+     * Opens every recorded sample in the pack and publishes them together, stamped as of when they
+     * were packed, so the scan that follows only reloads the ones that have changed since.
+     */
+    private void openPackedSamples() {
+        long startNanos = System.nanoTime();
+        BoardPack boardPack;
+        try {
+            boardPack = boardPacker.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the board pack");
+            return;
+        }
+        if (boardPack == null) {
+            return;
+        }
+
+        List<LoadedSample> packedSamples = new ArrayList<>();
+        for (BoardPack.Entry entry : boardPack.getEntries()) {
+            // Anything else would need converting, which loading from the file takes care of.
+            if (entry.getFormat() != BoardPack.FORMAT_SAMPLE_CODEC
+                    || entry.getSampleRateHz() != AudioConfig.getSampleRateHz()) {
+                continue;
+            }
+            Sample sample =
+                    RecordedSample.openPackedSample(audioEngine, sampleCache, boardPack, entry);
+            packedSamples.add(
+                    new LoadedSample(
+                            sample,
+                            new FileStamp(
+                                    context.getFileStreamPath(entry.getName()),
+                                    entry.getSourceLength(),
+                                    entry.getSourceLastModified())));
+        }
+        metrics.recordSampleLoad(PACK_LOAD_NAME, (System.nanoTime() - startNanos) / 1000);
+
+        uiHandler.post(() -> {
+            for (LoadedSample loadedSample : packedSamples) {
+                File file = loadedSample.fileStamp.file;
+                // An earlier scan may have got to the file first.
+                if (isShutdown
+                        || pendingFiles.contains(file)
+                        || loadedSamples.containsKey(file)) {
+                    loadedSample.sample.shutdown();
+                } else {
+                    publish(loadedSample.sample, loadedSample.fileStamp);
+                }
+            }
+        });
+    }
+
+    /** Decodes an imported file, or picks up its cached decoded copy, and swaps it in. */
+    private void loadImportedSample(File file, LoadedSample previous) {
+        FileStamp fileStamp = new FileStamp(file);
+        long startNanos = System.nanoTime();
+        Sample sample =
+                ImportedSample.openImportedSample(
+                        context, audioEngine, sampleCache, playbackController, file);
+        recordLoadTime(file, startNanos);
+
+        uiHandler.post(() -> {
+            pendingFiles.remove(file);
+            if (isShutdown) {
+                sample.shutdown();
+                return;
+            }
+            if (!importIndex.contains(file)) {
+                // Removed while it was loading. The index has already told us, so drop it.
+                sample.shutdown();
+                return;
+            }
+
+            if (previous != null && loadedSamples.get(file) == previous) {
+                loadedSamples.remove(file);
+                removeSample(previous.sample);
+            }
+            publish(sample, fileStamp);
+        });
+    }
+
+    /** Maps a recorded sample's file, reusing the existing sample if there is one. */
+    private void loadRecordedSample(File file, LoadedSample previous) {
+        if (migrateRecordedSample(file)) {
+            return;
+        }
+
+        FileStamp fileStamp = new FileStamp(file);
+        long startNanos = System.nanoTime();
+
+        Sample sample;
+        if (previous != null) {
+            // Remap in place so anything playing carries on uninterrupted.
+            ((RecordedSample) previous.sample).reload(context);
+            sample = previous.sample;
+        } else {
+            sample = RecordedSample.openSavedSample(
+                    context, audioEngine, sampleCache, file.getName());
+        }
+        recordLoadTime(file, startNanos);
+
+        uiHandler.post(() -> {
+            pendingFiles.remove(file);
+            if (isShutdown) {
+                if (sample != null) {
+                    sample.shutdown();
+                }
+                return;
+            }
+            if (sample == null) {
+                Log.e(TAG, String.format("Unable to load sample %s", file.getName()));
+                return;
+            }
+
+            if (previous == null) {
+                publish(sample, fileStamp);
+            } else {
+                loadedSamples.put(file, new LoadedSample(sample, fileStamp));
+            }
+            boardPacker.update(file, fileStamp.length, fileStamp.lastModified);
+        });
+    }
+
+    /**
+     * Converts a recorded sample that was saved as raw PCM, or at a rate other than the output's,
+     * so it never plays at the wrong pitch. The next scan picks up the converted file.
+     *
+     * @return whether or not the sample is being converted instead of loaded
+     */
+    private boolean migrateRecordedSample(File file) {
+        try {
+            if (!RecordedSample.needsMigration(file)) {
+                return false;
+            }
+        } catch (IOException e) {
+            // Let the load itself report the problem.
+            return false;
+        }
+
+        // If it can't be converted, it's better played as it is than not at all.
+        return RecordedSample.migrate(context, recordingStore, file, isSaved ->
+                uiHandler.post(() -> {
+                    pendingFiles.remove(file);
+                    if (isSaved && !isShutdown) {
+                        refresh();
+                    }
+                }));
+    }
+
+    private void recordLoadTime(File file, long startNanos) {
+        metrics.recordSampleLoad(file.getName(), (System.nanoTime() - startNanos) / 1000);
+    }
+
+    private void publish(Sample sample, FileStamp fileStamp) {
+        loadedSamples.put(fileStamp.file, new LoadedSample(sample, fileStamp));
+        loaderCallback.onSampleLoaded(sample);
+    }
+
+    private void removeSample(Sample sample) {
+        playbackController.remove(sample);
+        loaderCallback.onSampleRemoved(sample);
+    }
+}
@@ -0,0 +1,135 @@
+package com.alexkang.loopboard;
+
+import com.alexkang.loopboard.core.PcmFormat;
+
+import java.util.Locale;
+
+/**
+ * The shared tempo clock that loops are launched against. Time is measured in frames of the
+ * {@link AudioEngine}'s output, so launches line up to the sample no matter when the UI thread gets
+ * around to asking for them. The grid is anchored to the first loop started while no other loop is
+ * playing, and every later loop launch waits for the next beat or bar of that grid.
+ *
+ * <p>The engine reports where each quantized launch actually began, which gives a measure of launch
+ * jitter: a launch only misses its boundary if the request reached the render thread after that
+ * boundary had already been mixed.
+ */
+class Transport {
+
+    static final int DEFAULT_TEMPO_BPM = 120;
+    static final int MIN_TEMPO_BPM = 40;
+    static final int MAX_TEMPO_BPM = 240;
+
+    enum Quantization {
+        /** Loops start as soon as they're launched. */
+        NONE,
+        /** Loops start on the next beat. */
+        BEAT,
+        /** Loops start on the next bar. */
+        BAR
+    }
+
+    private final int sampleRateHz = AudioConfig.getSampleRateHz();
+    private volatile int tempoBpm = DEFAULT_TEMPO_BPM;
+    private volatile int beatsPerBar = 4;
+    private volatile Quantization quantization = Quantization.BAR;
+    private volatile long originFrame = 0;
+
+    // Launch statistics, only written by the render thread.
+    private volatile int launchCount = 0;
+    private volatile int lateLaunchCount = 0;
+    private volatile long totalJitterFrames = 0;
+    private volatile long maxJitterFrames = 0;
+
+    int getTempoBpm() {
+        return tempoBpm;
+    }
+
+    void setTempoBpm(int tempoBpm) {
+        this.tempoBpm = Math.max(MIN_TEMPO_BPM, Math.min(MAX_TEMPO_BPM, tempoBpm));
+    }
+
+    int getBeatsPerBar() {
+        return beatsPerBar;
+    }
+
+    void setBeatsPerBar(int beatsPerBar) {
+        this.beatsPerBar = Math.max(1, beatsPerBar);
+    }
+
+    Quantization getQuantization() {
+        return quantization;
+    }
+
+    void setQuantization(Quantization quantization) {
+        this.quantization = quantization;
+    }
+
+    /** Anchors the beat grid at the given frame. */
+    void setOrigin(long frame) {
+        originFrame = frame;
+    }
+
+    /** Returns the first frame on or after {@code frame} that a loop should be launched at. */
+    long getLaunchFrame(long frame) {
+        Quantization currentQuantization = quantization;
+        if (currentQuantization == Quantization.NONE) {
+            return frame;
+        }
+
+        double framesPerBoundary = sampleRateHz * 60.0 / tempoBpm;
+        if (currentQuantization == Quantization.BAR) {
+            framesPerBoundary *= beatsPerBar;
+        }
+        long origin = originFrame;
+        double boundaries = Math.ceil((frame - origin) / framesPerBoundary);
+        return origin + Math.round(Math.max(0, boundaries) * framesPerBoundary);
+    }
+
+    /**
+     * Records where a quantized launch actually started. Called from the render thread, so it
+     * mustn't allocate.
+     */
+    void onLaunched(long scheduledFrame, long actualFrame) {
+        long jitterFrames = Math.abs(actualFrame - scheduledFrame);
+        launchCount++;
+        totalJitterFrames += jitterFrames;
+        if (jitterFrames > 0) {
+            lateLaunchCount++;
+        }
+        if (jitterFrames > maxJitterFrames) {
+            maxJitterFrames = jitterFrames;
+        }
+    }
+
+    int getLaunchCount() {
+        return launchCount;
+    }
+
+    int getLateLaunchCount() {
+        return lateLaunchCount;
+    }
+
+    /** The mean distance between where launches were scheduled and where they started. */
+    double getMeanJitterMillis() {
+        int count = launchCount;
+        return count == 0 ? 0 : PcmFormat.framesToMillis(totalJitterFrames, sampleRateHz) / count;
+    }
+
+    double getMaxJitterMillis() {
+        return PcmFormat.framesToMillis(maxJitterFrames, sampleRateHz);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "Transport[%d bpm, %s, %d launches, %d late, jitter mean %.2f ms max %.2f ms]",
+                tempoBpm,
+                quantization,
+                getLaunchCount(),
+                getLateLaunchCount(),
+                getMeanJitterMillis(),
+                getMaxJitterMillis());
+    }
+}
@@ -1,55 +1,101 @@
 package com.alexkang.loopboard;
 
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.os.Environment;
 import android.util.Log;
 
+import com.alexkang.loopboard.core.PeakPyramid;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
 
 class Utils {
 
-    static final int MAX_SAMPLES = 24;
+    // The board is paged into banks of samples, and one bank is on screen at a time.
+    static final int BANK_SIZE = 24;
+    static final int MAX_BANKS = 16;
+    static final int MAX_SAMPLES = BANK_SIZE * MAX_BANKS;
+    // How many samples hold a voice in the engine at once: enough for the bank on screen and the
+    // one that was just left, which may still be playing.
+    static final int MAX_ACTIVE_SAMPLES = BANK_SIZE * 2;
+    // How many times one sample can overlap itself, and how many layers can sound across the board.
+    static final int SAMPLE_POLYPHONY = 4;
+    static final int MAX_POLYPHONY = 32;
     static final String IMPORTED_SAMPLE_PATH =
             Environment.getExternalStorageDirectory() + "/LoopBoard";
-    static final int SAMPLE_RATE_HZ = 44100;
-    static final int MIN_BUFFER_SIZE = AudioRecord.getMinBufferSize(
-            SAMPLE_RATE_HZ,
-            AudioFormat.CHANNEL_IN_MONO,
-            AudioFormat.ENCODING_PCM_16BIT);
 
     private static final String TAG = "Utils";
-    private static final String[] IMPORTED_SAMPLE_TYPES = {"wav", "mp3", "mp4", "m4a"};
-
-    /** Returns whether or not the given audio file can be played by this app. */
-    static boolean isSupportedSampleFile(File file) {
-        String fileName = file.getName();
-        for (String type : IMPORTED_SAMPLE_TYPES) {
-            // We use the file extension to determine the audio file type.
-            if (fileName.toLowerCase().endsWith(String.format(".%s", type))) {
+    // We use the file extension to determine the audio file type.
+    private static final String[] IMPORTED_SAMPLE_SUFFIXES = {".wav", ".mp3", ".mp4", ".m4a"};
+
+    /** Returns whether or not the named audio file can be played by this app. */
+    static boolean isSupportedSampleFile(String fileName) {
+        String lowerCaseName = fileName.toLowerCase(Locale.ENGLISH);
+        for (String suffix : IMPORTED_SAMPLE_SUFFIXES) {
+            if (lowerCaseName.endsWith(suffix)) {
                 return true;
             }
         }
         return false;
     }
 
+    /** Creates an empty file for the recorder to capture a new take into. */
+    static File createTempRecording(Context context) throws IOException {
+        return File.createTempFile("recording", null, context.getCacheDir());
+    }
+
     /**
-     * Saves an audio recording under the given name.
+     * Saves an audio recording under the given name by moving the captured file into place. The
+     * file is synced to disk first, and the rename replaces any existing recording atomically, so
+     * neither a crash nor a memory mapping of the old recording ever sees a truncated file. The
+     * recording's waveform peaks move along with it, if it has any.
+     *
+     * <p>This blocks on the disk, so samples should save through a {@link RecordingStore}.
      *
      * @return whether or not the file was successfully saved
      */
-    static boolean saveRecording(Context context, String name, byte[] recordedBytes) {
+    static boolean saveRecording(Context context, String name, File recordingFile) {
+        File destination = context.getFileStreamPath(name);
+        File peaksFile = PeakPyramid.sidecarFor(recordingFile);
+        File destinationPeaksFile = PeakPyramid.sidecarFor(destination);
+        if (syncFile(recordingFile) && recordingFile.renameTo(destination)) {
+            if (!peaksFile.renameTo(destinationPeaksFile)) {
+                // Stale peaks would be drawn for the new take, so let them be rebuilt instead.
+                destinationPeaksFile.delete();
+            }
+            return true;
+        }
+        Log.e(TAG, String.format("Failed to save recording %s", name));
+        deleteRecording(recordingFile);
+        return false;
+    }
+
+    /** Deletes a captured take that isn't going to be saved, along with its waveform peaks. */
+    static void deleteRecording(File recordingFile) {
+        recordingFile.delete();
+        PeakPyramid.sidecarFor(recordingFile).delete();
+    }
+
+    /** Flushes a file's contents all the way to the disk. */
+    private static boolean syncFile(File file) {
         try {
-            FileOutputStream output = context.openFileOutput(name, Context.MODE_PRIVATE);
-            output.write(recordedBytes);
-            output.close();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.getFD().sync();
+            } finally {
+                randomAccessFile.close();
+            }
             return true;
         } catch (IOException e) {
-            Log.e(TAG, String.format("Failed to save recording %s", name));
+            Log.e(TAG, String.format("Unable to sync %s", file.getName()));
+            return false;
         }
-        return false;
+    }
+
+    /** Returns whether or not a file in the app's files directory is a sample's sidecar. */
+    static boolean isSidecarFile(String fileName) {
+        return fileName.endsWith(PeakPyramid.SIDECAR_SUFFIX);
     }
 }
@@ -0,0 +1,92 @@
+package com.alexkang.loopboard;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Caps how many samples hold a {@link AudioEngine.Voice} at once, so the engine's per-block work
+ * and the layers' memory scale with the samples in use rather than with the whole library. Samples
+ * take a voice when they're played or their bank comes on screen, and once the pool is over
+ * capacity the least recently used ones give theirs back, except for samples that are playing,
+ * which stay pinned.
+ */
+class VoicePool {
+
+    interface PooledSample {
+        /** Returns whether or not the sample is playing, in which case it keeps its voice. */
+        boolean isPinned();
+
+        /** Asks the sample to give back its voice. Never called while the pool is locked. */
+        void releaseVoice();
+    }
+
+    private final int capacity;
+
+    // In access order, so iteration starts from the least recently used sample.
+    private final LinkedHashMap<PooledSample, Boolean> holders =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private int acquireCount = 0;
+    private int reclaimCount = 0;
+
+    VoicePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Records that a sample has taken a voice or is about to use it again, reclaiming the least
+     * recently used idle voices if the pool is over capacity.
+     */
+    void onAcquired(PooledSample sample) {
+        List<PooledSample> reclaimed = new ArrayList<>();
+        synchronized (this) {
+            if (holders.put(sample, Boolean.TRUE) == null) {
+                acquireCount++;
+            }
+
+            int excess = holders.size() - capacity;
+            Iterator<PooledSample> iterator = holders.keySet().iterator();
+            while (excess > 0 && iterator.hasNext()) {
+                PooledSample holder = iterator.next();
+                if (holder == sample || holder.isPinned()) {
+                    continue;
+                }
+                iterator.remove();
+                reclaimCount++;
+                reclaimed.add(holder);
+                excess--;
+            }
+        }
+
+        for (PooledSample holder : reclaimed) {
+            holder.releaseVoice();
+        }
+    }
+
+    /**
+     * Puts back a sample that was asked to give up its voice but started playing in the meantime.
+     * Doesn't reclaim anything, so it's safe to call while the sample is locked.
+     */
+    synchronized void onKept(PooledSample sample) {
+        holders.put(sample, Boolean.TRUE);
+    }
+
+    /** Forgets a sample that no longer holds a voice. */
+    synchronized void onReleased(PooledSample sample) {
+        holders.remove(sample);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "VoicePool[%d/%d voices, %d acquired, %d reclaimed]",
+                holders.size(),
+                capacity,
+                acquireCount,
+                reclaimCount);
+    }
+}
@@ -0,0 +1,85 @@
+package com.alexkang.loopboard;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.alexkang.loopboard.core.PeakPyramid;
+
+/**
+ * Draws a sample's waveform from its {@link PeakPyramid}, picking whichever level has about one
+ * block per pixel, so drawing a row never touches the audio itself.
+ */
+public class WaveformView extends View {
+
+    // Only every few pixels get a line, which reads better and keeps drawing cheap.
+    private static final int PIXELS_PER_LINE = 3;
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float[] lines = new float[0];
+    private PeakPyramid peaks;
+
+    public WaveformView(Context context) {
+        super(context);
+        init();
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    void setPeaks(PeakPyramid peaks) {
+        if (this.peaks != peaks) {
+            this.peaks = peaks;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        if (peaks == null || width <= 0) {
+            return;
+        }
+
+        int lineCount = width / PIXELS_PER_LINE;
+        byte[] level = peaks.getLevel(lineCount);
+        int blockCount = level.length / 2;
+        if (blockCount == 0) {
+            return;
+        }
+        if (lines.length < lineCount * 4) {
+            lines = new float[lineCount * 4];
+        }
+
+        float centre = getHeight() / 2f;
+        float scale = centre / 128f;
+        for (int line = 0; line < lineCount; line++) {
+            // Each line covers a run of blocks, and shows the extremes across all of them.
+            int firstBlock = (int) ((long) line * blockCount / lineCount);
+            int lastBlock =
+                    Math.max(firstBlock + 1, (int) ((long) (line + 1) * blockCount / lineCount));
+            int min = 0;
+            int max = 0;
+            for (int block = firstBlock; block < lastBlock; block++) {
+                min = Math.min(min, level[block * 2]);
+                max = Math.max(max, level[block * 2 + 1]);
+            }
+
+            float x = getPaddingLeft() + line * PIXELS_PER_LINE;
+            lines[line * 4] = x;
+            lines[line * 4 + 1] = centre - max * scale;
+            lines[line * 4 + 2] = x;
+            lines[line * 4 + 3] = centre - min * scale + 1;
+        }
+        canvas.drawLines(lines, 0, lineCount * 4, paint);
+    }
+
+    private void init() {
+        paint.setColor(getResources().getColor(R.color.millennial_blue));
+        paint.setStrokeWidth(PIXELS_PER_LINE - 1);
+    }
+}
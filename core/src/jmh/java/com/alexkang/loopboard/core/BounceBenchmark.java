@@ -0,0 +1,81 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ten seconds of a full bank bounced to disk on one thread. Anything under a second here means a
+ * one-minute bounce takes a few seconds at most, before it's even split across cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BounceBenchmark {
+
+    private static final int BOUNCE_FRAMES = PcmFormat.DEFAULT_SAMPLE_RATE_HZ * 10;
+    private static final int BLOCK_FRAMES = 8192;
+    private static final int GRAIN_FRAMES = 1323;
+    private static final int VOICE_COUNT = 24;
+
+    @Param({"panned", "stretched"})
+    public String effects;
+
+    private BounceRenderer renderer;
+    private File bounceFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        EffectSettings settings =
+                effects.equals("stretched")
+                        ? new EffectSettings(0.8f, -0.3f, 200, 5000, 5, 0.75f)
+                        : new EffectSettings(0.8f, -0.3f, 20, 20000, 0, 1);
+        List<BounceRenderer.Track> tracks = new ArrayList<>();
+        for (int i = 0; i < VOICE_COUNT; i++) {
+            PcmStream stream =
+                    new RawPcmStream(
+                            TestSignals.recording(2)
+                                    .order(ByteOrder.LITTLE_ENDIAN)
+                                    .asShortBuffer());
+            // Stagger the voices so they don't all wrap around on the same block.
+            tracks.add(new BounceRenderer.Track(stream, settings, i * BLOCK_FRAMES));
+        }
+        renderer =
+                new BounceRenderer(
+                        tracks, PcmFormat.DEFAULT_SAMPLE_RATE_HZ, BLOCK_FRAMES, GRAIN_FRAMES);
+        bounceFile = File.createTempFile("bounce", ".wav");
+    }
+
+    @TearDown
+    public void tearDown() {
+        bounceFile.delete();
+    }
+
+    @Benchmark
+    public void bounce() throws IOException {
+        WavWriter writer =
+                new WavWriter(
+                        new RandomAccessFile(bounceFile, "rw").getChannel(),
+                        PcmFormat.DEFAULT_SAMPLE_RATE_HZ,
+                        BOUNCE_FRAMES);
+        try {
+            renderer.render(0, BOUNCE_FRAMES, writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.alexkang.loopboard.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Collects everything written to it in memory. */
+class ByteArrayChannel implements WritableByteChannel {
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private boolean isOpen = true;
+
+    @Override
+    public int write(ByteBuffer source) {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+            output.write(source.get());
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+}
@@ -0,0 +1,66 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending captured chunks, as the recorder does for every read from the microphone: into the
+ * armed pre-roll ring, and through the encoder on the way to disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CaptureBenchmark {
+
+    @Param({"1024", "4096"})
+    public int chunkBytes;
+
+    private ByteBuffer chunk;
+    private CaptureRingBuffer ringBuffer;
+    private SampleCodec.Encoder encoder;
+    private final DiscardingChannel discardingChannel = new DiscardingChannel();
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBuffer recording = TestSignals.recording(1);
+        chunk = ByteBuffer.allocateDirect(chunkBytes);
+        recording.limit(chunkBytes);
+        chunk.put(recording).flip();
+
+        ringBuffer =
+                new CaptureRingBuffer(
+                        PcmFormat.DEFAULT_SAMPLE_RATE_HZ * PcmFormat.BYTES_PER_FRAME);
+        encoder = new SampleCodec.Encoder(discardingChannel, PcmFormat.DEFAULT_SAMPLE_RATE_HZ);
+    }
+
+    @Benchmark
+    public long appendToRing() {
+        chunk.rewind();
+        ringBuffer.write(chunk);
+        return ringBuffer.getWritePosition();
+    }
+
+    @Benchmark
+    public long drainRing() throws IOException {
+        chunk.rewind();
+        ringBuffer.write(chunk);
+        long end = ringBuffer.getWritePosition();
+        return ringBuffer.drainTo(end - chunkBytes, end, discardingChannel);
+    }
+
+    @Benchmark
+    public int appendToEncoder() throws IOException {
+        chunk.rewind();
+        return encoder.write(chunk);
+    }
+}
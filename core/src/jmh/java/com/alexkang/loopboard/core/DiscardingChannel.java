@@ -0,0 +1,23 @@
+package com.alexkang.loopboard.core;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Throws away everything written to it, so only the writer's own cost is measured. */
+class DiscardingChannel implements WritableByteChannel {
+
+    @Override
+    public int write(ByteBuffer source) {
+        int length = source.remaining();
+        source.position(source.limit());
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,111 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One render block of the engine with effects on every voice, looping raw PCM. Compare against
+ * {@link PcmMixerBenchmark} for what the effects cost. Like it, this mustn't allocate at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EffectChainBenchmark {
+
+    // A typical device's render block.
+    private static final int BLOCK_FRAMES = 960;
+    private static final int GRAIN_FRAMES = 1323;
+
+    @Param({"1", "24"})
+    public int voiceCount;
+
+    @Param({"panned", "filtered", "stretched"})
+    public String effects;
+
+    private PcmStream[] streams;
+    private GrainStretcher[] stretchers;
+    private EffectChain[] chains;
+    private EffectSettings settings;
+    private PcmMixer mixer;
+    private final short[] voiceBuffer = new short[BLOCK_FRAMES];
+    private final float[] voiceBus = new float[BLOCK_FRAMES];
+    private final short[] mixBuffer = new short[BLOCK_FRAMES * PcmFormat.OUTPUT_CHANNEL_COUNT];
+
+    @Setup
+    public void setUp() {
+        switch (effects) {
+            case "filtered":
+                settings = new EffectSettings(0.8f, -0.3f, 200, 5000, 0, 1);
+                break;
+            case "stretched":
+                settings = new EffectSettings(0.8f, -0.3f, 200, 5000, 5, 0.75f);
+                break;
+            default:
+                settings = new EffectSettings(0.8f, -0.3f, 20, 20000, 0, 1);
+                break;
+        }
+
+        streams = new PcmStream[voiceCount];
+        stretchers = new GrainStretcher[voiceCount];
+        chains = new EffectChain[voiceCount];
+        for (int i = 0; i < voiceCount; i++) {
+            streams[i] =
+                    new RawPcmStream(
+                            TestSignals.recording(2)
+                                    .order(ByteOrder.LITTLE_ENDIAN)
+                                    .asShortBuffer());
+            // Stagger the voices so they don't all wrap around on the same block.
+            streams[i].seek(i * BLOCK_FRAMES * 7);
+            stretchers[i] = new GrainStretcher(GRAIN_FRAMES);
+            stretchers[i].reset(i * BLOCK_FRAMES * 7);
+            chains[i] = new EffectChain(PcmFormat.DEFAULT_SAMPLE_RATE_HZ);
+        }
+        mixer = new PcmMixer(BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    public short[] mixBlock() {
+        mixer.clear();
+        for (int voice = 0; voice < voiceCount; voice++) {
+            if (settings.isStretched()) {
+                stretchers[voice].process(
+                        streams[voice],
+                        true,
+                        settings.getSpeed(),
+                        settings.getPitchRatio(),
+                        voiceBus,
+                        0,
+                        BLOCK_FRAMES);
+            } else {
+                readLooped(streams[voice]);
+            }
+            chains[voice].process(voiceBus, BLOCK_FRAMES, settings, mixer);
+        }
+        mixer.mixDown(mixBuffer);
+        return mixBuffer;
+    }
+
+    private void readLooped(PcmStream stream) {
+        int frame = 0;
+        while (frame < BLOCK_FRAMES) {
+            int framesRead = stream.read(voiceBuffer, 0, BLOCK_FRAMES - frame);
+            if (framesRead == 0) {
+                stream.seek(0);
+                continue;
+            }
+            for (int i = 0; i < framesRead; i++) {
+                voiceBus[frame + i] = voiceBuffer[i];
+            }
+            frame += framesRead;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One render block of the engine with no effects on: every voice is read and panned into the
+ * stereo block, then the block is clipped. This has to stay well under a block's worth of real
+ * time, and mustn't allocate at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PcmMixerBenchmark {
+
+    // A typical device's render block.
+    private static final int BLOCK_FRAMES = 960;
+
+    @Param({"1", "8", "24"})
+    public int voiceCount;
+
+    @Param({"raw", "encoded"})
+    public String format;
+
+    private PcmStream[] streams;
+    private PcmMixer mixer;
+    private final short[] voiceBuffer = new short[BLOCK_FRAMES];
+    private final float[] voiceBus = new float[BLOCK_FRAMES];
+    private final short[] mixBuffer = new short[BLOCK_FRAMES * PcmFormat.OUTPUT_CHANNEL_COUNT];
+
+    @Setup
+    public void setUp() throws Exception {
+        ByteBuffer recording = TestSignals.recording(2);
+        ByteBuffer source = recording;
+        if (format.equals("encoded")) {
+            ByteArrayChannel channel = new ByteArrayChannel();
+            SampleCodec.Encoder encoder =
+                    new SampleCodec.Encoder(channel, PcmFormat.DEFAULT_SAMPLE_RATE_HZ);
+            encoder.write(recording.duplicate());
+            encoder.close();
+            source = channel.toByteBuffer();
+        }
+
+        streams = new PcmStream[voiceCount];
+        for (int i = 0; i < voiceCount; i++) {
+            streams[i] =
+                    format.equals("encoded")
+                            ? new SampleCodec.Decoder(source)
+                            : new RawPcmStream(
+                                    source.duplicate()
+                                            .order(ByteOrder.LITTLE_ENDIAN)
+                                            .asShortBuffer());
+            // Stagger the voices so they don't all wrap around on the same block.
+            streams[i].seek(i * BLOCK_FRAMES * 7);
+        }
+        mixer = new PcmMixer(BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    public short[] mixBlock() {
+        mixer.clear();
+        for (PcmStream stream : streams) {
+            int frame = 0;
+            while (frame < BLOCK_FRAMES) {
+                int framesRead = stream.read(voiceBuffer, 0, BLOCK_FRAMES - frame);
+                if (framesRead == 0) {
+                    stream.seek(0);
+                    continue;
+                }
+                for (int i = 0; i < framesRead; i++) {
+                    voiceBus[frame + i] = voiceBuffer[i];
+                }
+                frame += framesRead;
+            }
+            mixer.add(voiceBus, BLOCK_FRAMES, 1, 1, 1, 1);
+        }
+        mixer.mixDown(mixBuffer);
+        return mixBuffer;
+    }
+}
@@ -0,0 +1,40 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Converting a legacy 44.1 kHz recording to the common native output rates. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResamplerBenchmark {
+
+    @Param({"48000", "22050"})
+    public int outputRateHz;
+
+    private ByteBuffer recording;
+
+    @Setup
+    public void setUp() {
+        recording = TestSignals.recording(10);
+    }
+
+    @Benchmark
+    public void resample() throws IOException {
+        PolyphaseResampler resampler =
+                new PolyphaseResampler(
+                        new DiscardingChannel(), PcmFormat.DEFAULT_SAMPLE_RATE_HZ, outputRateHz);
+        resampler.write(recording.duplicate());
+        resampler.close();
+    }
+}
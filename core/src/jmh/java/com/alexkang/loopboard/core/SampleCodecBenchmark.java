@@ -0,0 +1,78 @@
+package com.alexkang.loopboard.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Saving a recording to disk, and loading it back, the way the app does. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SampleCodecBenchmark {
+
+    @Param({"1", "10"})
+    public int seconds;
+
+    private ByteBuffer recording;
+    private File savedFile;
+    private File scratchFile;
+    private final short[] chunk = new short[SampleCodec.BLOCK_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        recording = TestSignals.recording(seconds);
+        savedFile = File.createTempFile("saved", null);
+        scratchFile = File.createTempFile("scratch", null);
+        encode(savedFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        savedFile.delete();
+        scratchFile.delete();
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        encode(scratchFile);
+        return scratchFile.length();
+    }
+
+    @Benchmark
+    public void load(Blackhole blackhole) throws IOException {
+        SampleCodec.Decoder decoder = new SampleCodec.Decoder(PcmFiles.map(savedFile));
+        int framesRead;
+        while ((framesRead = decoder.read(chunk, 0, chunk.length)) > 0) {
+            blackhole.consume(chunk[framesRead - 1]);
+        }
+    }
+
+    /** Seeking is what a looping voice does every time it wraps around. */
+    @Benchmark
+    public int seek() throws IOException {
+        SampleCodec.Decoder decoder = new SampleCodec.Decoder(PcmFiles.map(savedFile));
+        decoder.seek(decoder.getFrameCount() / 2);
+        return decoder.read(chunk, 0, chunk.length);
+    }
+
+    private void encode(File file) throws IOException {
+        SampleCodec.Encoder encoder =
+                new SampleCodec.Encoder(
+                        new FileOutputStream(file).getChannel(), PcmFormat.DEFAULT_SAMPLE_RATE_HZ);
+        encoder.write(recording.duplicate());
+        encoder.close();
+    }
+}
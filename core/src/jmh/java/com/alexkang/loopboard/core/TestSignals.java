@@ -0,0 +1,26 @@
+package com.alexkang.loopboard.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/** Deterministic audio for the benchmarks, shaped roughly like a real recording. */
+class TestSignals {
+
+    private TestSignals() {}
+
+    /** A few seconds of a sine with some noise on top, as little-endian 16-bit PCM. */
+    static ByteBuffer recording(int seconds) {
+        int frameCount = seconds * PcmFormat.DEFAULT_SAMPLE_RATE_HZ;
+        ByteBuffer pcm =
+                ByteBuffer.allocate(frameCount * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(0);
+        for (int i = 0; i < frameCount; i++) {
+            double tone = Math.sin(2 * Math.PI * 220 * i / PcmFormat.DEFAULT_SAMPLE_RATE_HZ) * 8000;
+            pcm.putShort((short) (tone + random.nextGaussian() * 500));
+        }
+        pcm.flip();
+        return pcm;
+    }
+}
@@ -0,0 +1,420 @@
+package com.alexkang.loopboard.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A whole board's samples packed into one file, so the board can be opened with a single open and
+ * map instead of several per sample. The file starts with a fixed-size index, one slot per sample
+ * holding its name, format, loop points and where its audio and waveform peaks live, followed by
+ * the payloads themselves. Each payload is given some room to grow, so one sample can be rewritten
+ * in place, or appended to the end of the file, without touching any of the others.
+ *
+ * <p>Every slot also records the size and modification time of the file its sample was packed
+ * from, so readers can tell whether the packed copy is still current. A slot is marked stale
+ * before its payload is rewritten, so a crash part way through never passes off a half-written
+ * sample as current.
+ */
+public class BoardPack {
+
+    /** Little-endian 16-bit PCM. */
+    public static final int FORMAT_RAW_PCM = 0;
+    /** A {@link SampleCodec} file. */
+    public static final int FORMAT_SAMPLE_CODEC = 1;
+
+    // "LBB1"
+    private static final int MAGIC = 0x4C424231;
+    private static final int HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 192;
+    private static final int MAX_NAME_BYTES = 96;
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    // Where each field sits within a slot. A name length of zero marks a free slot.
+    private static final int NAME_LENGTH = 0;
+    private static final int NAME = 2;
+    private static final int FORMAT = NAME + MAX_NAME_BYTES;
+    private static final int SAMPLE_RATE = FORMAT + 4;
+    private static final int LOOP_START = SAMPLE_RATE + 4;
+    private static final int LOOP_END = LOOP_START + 4;
+    private static final int SOURCE_LENGTH = LOOP_END + 4;
+    private static final int SOURCE_LAST_MODIFIED = SOURCE_LENGTH + 8;
+    private static final int AUDIO_OFFSET = SOURCE_LAST_MODIFIED + 8;
+    private static final int AUDIO_LENGTH = AUDIO_OFFSET + 8;
+    private static final int AUDIO_CAPACITY = AUDIO_LENGTH + 8;
+    private static final int PEAKS_OFFSET = AUDIO_CAPACITY + 8;
+    private static final int PEAKS_LENGTH = PEAKS_OFFSET + 8;
+    private static final int PEAKS_CAPACITY = PEAKS_LENGTH + 4;
+    // A new payload gets this much spare room, so a slightly longer take still fits in place.
+    private static final int GROWTH_DIVISOR = 4;
+
+    private final ByteBuffer mappedFile;
+    private final List<Entry> entries;
+
+    /** One sample in a pack. */
+    public static class Entry {
+
+        private final String name;
+        private final int format;
+        private final int sampleRateHz;
+        private final int loopStartFrame;
+        private final int loopEndFrame;
+        private final long sourceLength;
+        private final long sourceLastModified;
+
+        // Where the payloads live. Only meaningful for entries read from a pack.
+        private long audioOffset;
+        private long audioLength;
+        private long audioCapacity;
+        private long peaksOffset;
+        private int peaksLength;
+        private int peaksCapacity;
+
+        /**
+         * @param loopEndFrame where a loop wraps back to {@code loopStartFrame}, or -1 for the end
+         *     of the sample
+         * @param sourceLength the size of the file the sample was packed from
+         * @param sourceLastModified the modification time of the file the sample was packed from
+         */
+        public Entry(
+                String name,
+                int format,
+                int sampleRateHz,
+                int loopStartFrame,
+                int loopEndFrame,
+                long sourceLength,
+                long sourceLastModified) {
+            this.name = name;
+            this.format = format;
+            this.sampleRateHz = sampleRateHz;
+            this.loopStartFrame = loopStartFrame;
+            this.loopEndFrame = loopEndFrame;
+            this.sourceLength = sourceLength;
+            this.sourceLastModified = sourceLastModified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        public int getSampleRateHz() {
+            return sampleRateHz;
+        }
+
+        public int getLoopStartFrame() {
+            return loopStartFrame;
+        }
+
+        public int getLoopEndFrame() {
+            return loopEndFrame;
+        }
+
+        public long getSourceLength() {
+            return sourceLength;
+        }
+
+        public long getSourceLastModified() {
+            return sourceLastModified;
+        }
+    }
+
+    private BoardPack(ByteBuffer mappedFile, List<Entry> entries) {
+        this.mappedFile = mappedFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens a pack for reading with one open and one map. The mapping, and every payload handed
+     * out from it, stays valid after the pack is closed, but a sample that's later rewritten in
+     * place reads its new audio through the old mapping too. A slot whose rewrite never finished is
+     * left out, so its sample is loaded from its own file instead.
+     */
+    public static BoardPack open(File file) throws IOException {
+        ByteBuffer mappedFile = PcmFiles.map(file);
+        if (mappedFile.limit() < HEADER_SIZE || mappedFile.getInt(0) != MAGIC) {
+            throw new IOException("Not a board pack");
+        }
+
+        int slotCount = mappedFile.getInt(4);
+        if (mappedFile.limit() < indexSize(slotCount)) {
+            throw new IOException("Truncated board pack");
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < slotCount; i++) {
+            Entry entry = readSlot(mappedFile, slotPosition(i));
+            if (entry != null
+                    && entry.sourceLength >= 0
+                    && entry.audioOffset + entry.audioLength <= mappedFile.limit()
+                    && entry.peaksOffset + entry.peaksLength <= mappedFile.limit()) {
+                entries.add(entry);
+            }
+        }
+        return new BoardPack(mappedFile, Collections.unmodifiableList(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /** The entry's audio, in the format it was packed in. */
+    public ByteBuffer getAudio(Entry entry) {
+        return slice(entry.audioOffset, entry.audioLength);
+    }
+
+    /** The entry's waveform peaks, as they'd be read from a {@link PeakPyramid} sidecar. */
+    public ByteBuffer getPeaks(Entry entry) {
+        return slice(entry.peaksOffset, entry.peaksLength);
+    }
+
+    // ------- Private methods -------
+
+    private ByteBuffer slice(long offset, long length) {
+        ByteBuffer slice = mappedFile.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset + length));
+        return slice.slice();
+    }
+
+    private static long indexSize(int slotCount) {
+        return HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+    }
+
+    private static long slotPosition(int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    /** Returns the entry in a slot, or null if the slot is free. */
+    private static Entry readSlot(ByteBuffer index, long position) {
+        int base = (int) position;
+        int nameLength = index.getShort(base + NAME_LENGTH);
+        if (nameLength <= 0 || nameLength > MAX_NAME_BYTES) {
+            return null;
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        ByteBuffer name = index.duplicate();
+        name.position(base + NAME);
+        name.get(nameBytes);
+        Entry entry =
+                new Entry(
+                        new String(nameBytes, NAME_CHARSET),
+                        index.getInt(base + FORMAT),
+                        index.getInt(base + SAMPLE_RATE),
+                        index.getInt(base + LOOP_START),
+                        index.getInt(base + LOOP_END),
+                        index.getLong(base + SOURCE_LENGTH),
+                        index.getLong(base + SOURCE_LAST_MODIFIED));
+        entry.audioOffset = index.getLong(base + AUDIO_OFFSET);
+        entry.audioLength = index.getLong(base + AUDIO_LENGTH);
+        entry.audioCapacity = index.getLong(base + AUDIO_CAPACITY);
+        entry.peaksOffset = index.getLong(base + PEAKS_OFFSET);
+        entry.peaksLength = index.getInt(base + PEAKS_LENGTH);
+        entry.peaksCapacity = index.getInt(base + PEAKS_CAPACITY);
+        return entry;
+    }
+
+    /**
+     * Adds, rewrites and removes samples in a pack, creating it if it doesn't exist yet. Nothing
+     * is cached between calls, so a writer always works from what's on disk. Not thread safe.
+     */
+    public static class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int slotCount;
+        private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+
+        /** @param slotCount how many samples a new pack has room for */
+        public Writer(File file, int slotCount) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            channel = this.file.getChannel();
+            try {
+                if (channel.size() == 0) {
+                    create(slotCount);
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a board pack");
+                }
+                this.slotCount = header.getInt(4);
+            } catch (IOException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Packs a sample, replacing any sample of the same name. The audio is rewritten in place
+         * if it fits in the room the sample already has, and appended to the end of the pack if
+         * it doesn't.
+         *
+         * @throws IOException if the pack has no free slot left
+         */
+        public void put(Entry entry, ByteBuffer audio, ByteBuffer peaks) throws IOException {
+            byte[] nameBytes = entry.name.getBytes(NAME_CHARSET);
+            if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_BYTES) {
+                throw new IOException("Name doesn't fit in a board pack: " + entry.name);
+            }
+
+            int slotIndex = findSlot(entry.name);
+            if (slotIndex < 0) {
+                throw new IOException("Board pack is full");
+            }
+            long position = slotPosition(slotIndex);
+            Entry previous = readSlotAt(position);
+
+            // Nobody may trust this slot while its payloads are half written.
+            if (previous != null) {
+                ByteBuffer stale = ByteBuffer.allocate(8);
+                stale.putLong(0, -1);
+                writeFully(stale, position + SOURCE_LENGTH);
+                channel.force(false);
+            }
+
+            long end = channel.size();
+            if (previous != null && audio.remaining() <= previous.audioCapacity) {
+                entry.audioOffset = previous.audioOffset;
+                entry.audioCapacity = previous.audioCapacity;
+            } else {
+                entry.audioOffset = end;
+                entry.audioCapacity = audio.remaining() + audio.remaining() / GROWTH_DIVISOR;
+                end += entry.audioCapacity;
+            }
+            if (previous != null && peaks.remaining() <= previous.peaksCapacity) {
+                entry.peaksOffset = previous.peaksOffset;
+                entry.peaksCapacity = previous.peaksCapacity;
+            } else {
+                entry.peaksOffset = end;
+                entry.peaksCapacity = peaks.remaining() + peaks.remaining() / GROWTH_DIVISOR;
+            }
+            entry.audioLength = audio.remaining();
+            entry.peaksLength = peaks.remaining();
+
+            writeFully(audio.duplicate(), entry.audioOffset);
+            writeFully(peaks.duplicate(), entry.peaksOffset);
+            long requiredSize = Math.max(
+                    entry.audioOffset + entry.audioCapacity,
+                    entry.peaksOffset + entry.peaksCapacity);
+            if (channel.size() < requiredSize) {
+                file.setLength(requiredSize);
+            }
+            channel.force(false);
+            writeSlot(position, entry, nameBytes);
+            channel.force(false);
+        }
+
+        /** Frees a sample's slot. Its room is reused by whichever sample takes the slot next. */
+        public void remove(String name) throws IOException {
+            for (int i = 0; i < slotCount; i++) {
+                Entry entry = readSlotAt(slotPosition(i));
+                if (entry != null && entry.name.equals(name)) {
+                    // A name length of zero.
+                    writeFully(ByteBuffer.allocate(2), slotPosition(i) + NAME_LENGTH);
+                    channel.force(false);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        // ------- Private methods -------
+
+        private void create(int slotCount) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(slotCount).flip();
+            writeFully(header, 0);
+            file.setLength(indexSize(slotCount));
+            channel.force(false);
+        }
+
+        /** The slot holding a name, or failing that a free one, or -1 if there's neither. */
+        private int findSlot(String name) throws IOException {
+            int freeSlot = -1;
+            for (int i = 0; i < slotCount; i++) {
+                slot.clear();
+                readFully(slot, slotPosition(i));
+                Entry entry = readSlot(slot, 0);
+                if (entry == null) {
+                    // Prefer a slot that already has room set aside.
+                    if (freeSlot < 0 || slot.getLong(AUDIO_CAPACITY) > 0) {
+                        freeSlot = i;
+                    }
+                } else if (entry.name.equals(name)) {
+                    return i;
+                }
+            }
+            return freeSlot;
+        }
+
+        /** Reads a slot, free or not, so its room can be reused. Returns null for an unused one. */
+        private Entry readSlotAt(long position) throws IOException {
+            slot.clear();
+            readFully(slot, position);
+            Entry entry = readSlot(slot, 0);
+            if (entry != null || slot.getLong(AUDIO_CAPACITY) <= 0) {
+                return entry;
+            }
+
+            // A freed slot keeps its room, which a new sample can move into.
+            Entry freed = new Entry("", FORMAT_RAW_PCM, 0, 0, -1, -1, -1);
+            freed.audioOffset = slot.getLong(AUDIO_OFFSET);
+            freed.audioCapacity = slot.getLong(AUDIO_CAPACITY);
+            freed.peaksOffset = slot.getLong(PEAKS_OFFSET);
+            freed.peaksCapacity = slot.getInt(PEAKS_CAPACITY);
+            return freed;
+        }
+
+        private void writeSlot(long position, Entry entry, byte[] nameBytes) throws IOException {
+            slot.clear();
+            slot.put(new byte[SLOT_SIZE]);
+            slot.putShort(NAME_LENGTH, (short) nameBytes.length);
+            slot.position(NAME);
+            slot.put(nameBytes);
+            slot.putInt(FORMAT, entry.format)
+                    .putInt(SAMPLE_RATE, entry.sampleRateHz)
+                    .putInt(LOOP_START, entry.loopStartFrame)
+                    .putInt(LOOP_END, entry.loopEndFrame)
+                    .putLong(SOURCE_LENGTH, entry.sourceLength)
+                    .putLong(SOURCE_LAST_MODIFIED, entry.sourceLastModified)
+                    .putLong(AUDIO_OFFSET, entry.audioOffset)
+                    .putLong(AUDIO_LENGTH, entry.audioLength)
+                    .putLong(AUDIO_CAPACITY, entry.audioCapacity)
+                    .putLong(PEAKS_OFFSET, entry.peaksOffset)
+                    .putInt(PEAKS_LENGTH, entry.peaksLength)
+                    .putInt(PEAKS_CAPACITY, entry.peaksCapacity);
+            slot.clear();
+            writeFully(slot, position);
+        }
+
+        private void readFully(ByteBuffer destination, long position) throws IOException {
+            while (destination.hasRemaining()) {
+                int bytesRead = channel.read(destination, position);
+                if (bytesRead < 0) {
+                    throw new IOException("Truncated board pack");
+                }
+                position += bytesRead;
+            }
+        }
+
+        private void writeFully(ByteBuffer source, long position) throws IOException {
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.alexkang.loopboard.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders looping samples, effects and all, into a {@link WavWriter} as fast as the CPU allows,
+ * rather than in step with an output. Each renderer keeps its own cursors, filters and buffers, so
+ * a bounce can be split into time ranges with one renderer per thread.
+ *
+ * <p>Filters and grains carry state from block to block, so a range that doesn't start at the top
+ * is rendered from a little earlier, and the run-up is thrown away. The run-up starts on a grain
+ * boundary, and a stretched track is stepped there grain by grain rather than worked out in one
+ * multiply, which would round differently. So ranges come out the same as if the whole bounce had
+ * been rendered in one go.
+ */
+public class BounceRenderer {
+
+    // Long enough for the filters to settle and for a couple of grains to overlap.
+    private static final int RUN_UP_FRAMES = 4096;
+
+    private final TrackState[] tracks;
+    private final int blockFrames;
+    // Where grains start, in output frames. Only matters if some track is stretched.
+    private final int hopFrames;
+    private final PcmMixer mixer;
+    private final float[] bus;
+    private final short[] readBuffer;
+    private final short[] mixBuffer;
+    private final ByteBuffer output;
+    private final ShortBuffer outputSamples;
+
+    /** A sample to loop for the whole bounce. */
+    public static class Track {
+
+        private final PcmStream stream;
+        private final EffectSettings effects;
+        private final int startFrame;
+
+        /** @param startFrame the frame of the sample that the bounce starts on */
+        public Track(PcmStream stream, EffectSettings effects, int startFrame) {
+            this.stream = stream;
+            this.effects = effects;
+            this.startFrame = startFrame;
+        }
+    }
+
+    private static class TrackState {
+
+        private final PcmStream stream;
+        private final EffectSettings effects;
+        private final int startFrame;
+        private final EffectChain effectChain;
+        private final GrainStretcher stretcher;
+
+        private TrackState(Track track, int sampleRateHz, int grainFrames) {
+            stream = track.stream.duplicate();
+            effects = track.effects;
+            startFrame = track.startFrame;
+            effectChain = new EffectChain(sampleRateHz);
+            stretcher = effects.isStretched() ? new GrainStretcher(grainFrames) : null;
+        }
+    }
+
+    /**
+     * @param blockFrames how much to mix at a time. Bigger blocks cost less per frame.
+     * @param grainFrames how long the grains are for stretched tracks, to match live playback
+     */
+    public BounceRenderer(List<Track> tracks, int sampleRateHz, int blockFrames, int grainFrames) {
+        List<TrackState> trackStates = new ArrayList<>();
+        for (Track track : tracks) {
+            if (track.stream.getFrameCount() > 0) {
+                trackStates.add(new TrackState(track, sampleRateHz, grainFrames));
+            }
+        }
+        this.tracks = trackStates.toArray(new TrackState[0]);
+        this.blockFrames = blockFrames;
+        int stretchedHopFrames = 1;
+        for (TrackState track : this.tracks) {
+            if (track.stretcher != null) {
+                stretchedHopFrames = track.stretcher.getHopFrames();
+            }
+        }
+        hopFrames = stretchedHopFrames;
+
+        mixer = new PcmMixer(blockFrames);
+        bus = new float[blockFrames];
+        readBuffer = new short[blockFrames];
+        mixBuffer = new short[blockFrames * PcmFormat.OUTPUT_CHANNEL_COUNT];
+        output =
+                ByteBuffer.allocateDirect(blockFrames * PcmFormat.BYTES_PER_OUTPUT_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        outputSamples = output.asShortBuffer();
+    }
+
+    /** Renders the frames from {@code fromFrame} up to {@code toFrame} of the bounce. */
+    public void render(long fromFrame, long toFrame, WavWriter writer) throws IOException {
+        long frame = Math.max(0, fromFrame - RUN_UP_FRAMES);
+        frame -= frame % hopFrames;
+        for (TrackState track : tracks) {
+            seek(track, frame);
+        }
+
+        while (frame < toFrame) {
+            long blockEnd = frame < fromFrame ? fromFrame : toFrame;
+            int length = (int) Math.min(blockFrames, blockEnd - frame);
+            mixBlock(length);
+            if (frame >= fromFrame) {
+                outputSamples.clear();
+                outputSamples.put(mixBuffer, 0, length * PcmFormat.OUTPUT_CHANNEL_COUNT);
+                output.clear();
+                output.limit(length * PcmFormat.BYTES_PER_OUTPUT_FRAME);
+                writer.write(frame, output);
+            }
+            frame += length;
+        }
+    }
+
+    // ------- Private methods -------
+
+    /** Puts a track where it would be after looping for the given number of frames. */
+    private void seek(TrackState track, long frame) {
+        if (track.stretcher != null) {
+            // Grains start every hop, from the top of the bounce.
+            track.stretcher.reset(track.startFrame);
+            track.stretcher.skipGrains(
+                    track.stream, true, track.effects.getSpeed(), frame / hopFrames);
+        } else {
+            track.stream.seek((int) ((track.startFrame + frame) % track.stream.getFrameCount()));
+        }
+        track.effectChain.reset();
+    }
+
+    private void mixBlock(int length) {
+        mixer.clear();
+        for (TrackState track : tracks) {
+            if (track.stretcher != null) {
+                track.stretcher.process(
+                        track.stream,
+                        true,
+                        track.effects.getSpeed(),
+                        track.effects.getPitchRatio(),
+                        bus,
+                        0,
+                        length);
+            } else {
+                readLooped(track.stream, length);
+            }
+            track.effectChain.process(bus, length, track.effects, mixer);
+        }
+        mixer.mixDown(mixBuffer);
+    }
+
+    private void readLooped(PcmStream stream, int length) {
+        int frame = 0;
+        while (frame < length) {
+            int framesRead = stream.read(readBuffer, 0, length - frame);
+            if (framesRead == 0) {
+                stream.seek(0);
+                continue;
+            }
+            for (int i = 0; i < framesRead; i++) {
+                bus[frame + i] = readBuffer[i];
+            }
+            frame += framesRead;
+        }
+    }
+}
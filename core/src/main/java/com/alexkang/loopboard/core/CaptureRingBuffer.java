@@ -0,0 +1,82 @@
+package com.alexkang.loopboard.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A fixed-size ring of the most recently captured audio bytes. There is a single writer, the
+ * capture thread, and positions are absolute byte counts since the buffer was created, so readers
+ * can tell exactly which part of the stream is still available without taking a lock.
+ */
+public class CaptureRingBuffer {
+
+    private final ByteBuffer buffer;
+    private final int mask;
+
+    // Views used for copying in and out, so that nothing is allocated per chunk.
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+
+    private volatile long writePosition = 0;
+
+    /** Creates a ring holding at least {@code minCapacity} bytes, rounded up to a power of two. */
+    public CaptureRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        buffer = ByteBuffer.allocateDirect(capacity);
+        mask = capacity - 1;
+        writeView = buffer.duplicate();
+        readView = buffer.duplicate();
+    }
+
+    /** Total number of bytes ever written. */
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    /** The absolute position of the oldest byte that hasn't been overwritten yet. */
+    public long getOldestPosition() {
+        return Math.max(0, writePosition - buffer.capacity());
+    }
+
+    /** Appends every remaining byte of {@code source}. Only called from the capture thread. */
+    public void write(ByteBuffer source) {
+        int sourceLimit = source.limit();
+        while (source.hasRemaining()) {
+            int offset = (int) (writePosition & mask);
+            int length = Math.min(source.remaining(), buffer.capacity() - offset);
+
+            source.limit(source.position() + length);
+            writeView.clear();
+            writeView.position(offset);
+            writeView.put(source);
+            source.limit(sourceLimit);
+
+            // Publish only after the bytes are in place.
+            writePosition += length;
+        }
+    }
+
+    /**
+     * Writes the bytes between two absolute positions to a channel. Anything that has already been
+     * overwritten is skipped.
+     *
+     * @return the position that was written up to
+     */
+    public long drainTo(long from, long to, WritableByteChannel channel) throws IOException {
+        long position = Math.max(from, getOldestPosition());
+        long end = Math.min(to, writePosition);
+        while (position < end) {
+            int offset = (int) (position & mask);
+            int length = (int) Math.min(end - position, buffer.capacity() - offset);
+
+            readView.clear();
+            readView.position(offset);
+            readView.limit(offset + length);
+            while (readView.hasRemaining()) {
+                position += channel.write(readView);
+            }
+        }
+        return Math.max(position, from);
+    }
+}
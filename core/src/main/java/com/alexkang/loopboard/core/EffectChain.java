@@ -0,0 +1,144 @@
+package com.alexkang.loopboard.core;
+
+/**
+ * Applies a voice's {@link EffectSettings} to each block of its audio: a low cut and a high cut,
+ * then gain and pan on the way into the {@link PcmMixer}. New settings are glided to rather than
+ * jumped to, gains across a block and cutoffs over a few blocks, so moving a slider never clicks.
+ * Filters that are wide open are skipped, so a sample with no effects costs next to nothing.
+ *
+ * <p>Nothing is allocated after construction, so it's safe to use on the audio thread.
+ */
+public class EffectChain {
+
+    // How far cutoffs move towards their targets each block, as a fraction of the distance left.
+    private static final double CUTOFF_GLIDE = 0.25;
+    // Close enough, as a ratio, for a gliding cutoff to snap to its target.
+    private static final double CUTOFF_SNAP = 1.01;
+    // Keeps the high cut comfortably clear of the Nyquist frequency.
+    private static final float MAX_CUTOFF_FRACTION = 0.45f;
+    private static final float BUTTERWORTH_Q = 0.70710678f;
+
+    private final int sampleRateHz;
+    private final Biquad lowCut = new Biquad();
+    private final Biquad highCut = new Biquad();
+
+    private float leftGain;
+    private float rightGain;
+    private float lowCutHz;
+    private float highCutHz;
+    private boolean isReset = true;
+
+    public EffectChain(int sampleRateHz) {
+        this.sampleRateHz = sampleRateHz;
+    }
+
+    /**
+     * Forgets the filters' history, and jumps straight to the next block's settings rather than
+     * gliding. For a voice that's starting again from silence.
+     */
+    public void reset() {
+        isReset = true;
+    }
+
+    /**
+     * Filters a block of a voice in place, then mixes it into the first {@code length} frames of
+     * the mixer's block.
+     */
+    public void process(float[] block, int length, EffectSettings settings, PcmMixer mixer) {
+        // Unity in the middle, and the far side fades out as the sample is panned away from it.
+        float pan = settings.getPan();
+        float targetLeftGain = settings.getGain() * Math.min(1, 1 - pan);
+        float targetRightGain = settings.getGain() * Math.min(1, 1 + pan);
+
+        if (isReset) {
+            leftGain = targetLeftGain;
+            rightGain = targetRightGain;
+            lowCutHz = settings.getLowCutHz();
+            highCutHz = settings.getHighCutHz();
+            lowCut.clear();
+            highCut.clear();
+            isReset = false;
+        } else {
+            lowCutHz = glide(lowCutHz, settings.getLowCutHz());
+            highCutHz = glide(highCutHz, settings.getHighCutHz());
+        }
+
+        if (lowCutHz > EffectSettings.MIN_CUTOFF_HZ) {
+            lowCut.configure(true, lowCutHz, sampleRateHz);
+            lowCut.process(block, length);
+        } else {
+            lowCut.clear();
+        }
+        if (highCutHz < EffectSettings.MAX_CUTOFF_HZ) {
+            highCut.configure(
+                    false, Math.min(highCutHz, sampleRateHz * MAX_CUTOFF_FRACTION), sampleRateHz);
+            highCut.process(block, length);
+        } else {
+            highCut.clear();
+        }
+
+        mixer.add(block, length, leftGain, targetLeftGain, rightGain, targetRightGain);
+        leftGain = targetLeftGain;
+        rightGain = targetRightGain;
+    }
+
+    // ------- Private methods -------
+
+    /** Moves a cutoff part of the way to its target, evenly in octaves. */
+    private static float glide(float cutoffHz, float targetHz) {
+        double ratio = targetHz / cutoffHz;
+        if (ratio < CUTOFF_SNAP && ratio > 1 / CUTOFF_SNAP) {
+            return targetHz;
+        }
+        return (float) (cutoffHz * Math.pow(ratio, CUTOFF_GLIDE));
+    }
+
+    /** A second-order Butterworth section, in transposed direct form II. */
+    private static class Biquad {
+
+        private float b0;
+        private float b1;
+        private float b2;
+        private float a1;
+        private float a2;
+        private float z1;
+        private float z2;
+        private float cutoffHz = -1;
+        private boolean isHighPass;
+
+        /** Works out the coefficients, unless they're already set for this cutoff. */
+        private void configure(boolean isHighPass, float cutoffHz, int sampleRateHz) {
+            if (cutoffHz == this.cutoffHz && isHighPass == this.isHighPass) {
+                return;
+            }
+            this.cutoffHz = cutoffHz;
+            this.isHighPass = isHighPass;
+
+            double omega = 2 * Math.PI * cutoffHz / sampleRateHz;
+            double cos = Math.cos(omega);
+            double alpha = Math.sin(omega) / (2 * BUTTERWORTH_Q);
+            double a0 = 1 + alpha;
+            double edge = isHighPass ? (1 + cos) / 2 : (1 - cos) / 2;
+            b0 = (float) (edge / a0);
+            b1 = (float) ((isHighPass ? -2 * edge : 2 * edge) / a0);
+            b2 = b0;
+            a1 = (float) (-2 * cos / a0);
+            a2 = (float) ((1 - alpha) / a0);
+        }
+
+        private void process(float[] block, int length) {
+            for (int i = 0; i < length; i++) {
+                float input = block[i];
+                float output = b0 * input + z1;
+                z1 = b1 * input - a1 * output + z2;
+                z2 = b2 * input - a2 * output;
+                block[i] = output;
+            }
+        }
+
+        private void clear() {
+            z1 = 0;
+            z2 = 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.alexkang.loopboard.core;
+
+/**
+ * How one sample should sound: its gain and pan, a low cut and a high cut, and its pitch and speed.
+ * Settings are immutable, so the UI can hand a new set to the audio thread with a single reference
+ * write, and an {@link EffectChain} glides over to them from whatever it was playing before.
+ */
+public class EffectSettings {
+
+    public static final float MIN_CUTOFF_HZ = 20;
+    public static final float MAX_CUTOFF_HZ = 20000;
+    public static final float MAX_GAIN = 2;
+    public static final float MAX_PITCH_SEMITONES = 12;
+    public static final float MIN_SPEED = 0.5f;
+    public static final float MAX_SPEED = 2;
+
+    /** Plays the sample exactly as it was recorded. */
+    public static final EffectSettings DEFAULT =
+            new EffectSettings(1, 0, MIN_CUTOFF_HZ, MAX_CUTOFF_HZ, 0, 1);
+
+    private final float gain;
+    private final float pan;
+    private final float lowCutHz;
+    private final float highCutHz;
+    private final float pitchSemitones;
+    private final float pitchRatio;
+    private final float speed;
+
+    /**
+     * Everything is clamped into range.
+     *
+     * @param gain linear, from silent at 0 to {@link #MAX_GAIN}
+     * @param pan from -1 for hard left to 1 for hard right
+     * @param lowCutHz anything below this is filtered out, or nothing at {@link #MIN_CUTOFF_HZ}
+     * @param highCutHz anything above this is filtered out, or nothing at {@link #MAX_CUTOFF_HZ}
+     * @param pitchSemitones how far to shift the pitch, without changing the speed
+     * @param speed how fast to play through the sample, without changing the pitch
+     */
+    public EffectSettings(
+            float gain,
+            float pan,
+            float lowCutHz,
+            float highCutHz,
+            float pitchSemitones,
+            float speed) {
+        this.gain = clamp(gain, 0, MAX_GAIN);
+        this.pan = clamp(pan, -1, 1);
+        this.lowCutHz = clamp(lowCutHz, MIN_CUTOFF_HZ, MAX_CUTOFF_HZ);
+        this.highCutHz = clamp(highCutHz, MIN_CUTOFF_HZ, MAX_CUTOFF_HZ);
+        this.pitchSemitones = clamp(pitchSemitones, -MAX_PITCH_SEMITONES, MAX_PITCH_SEMITONES);
+        this.pitchRatio = (float) Math.pow(2, this.pitchSemitones / 12);
+        this.speed = clamp(speed, MIN_SPEED, MAX_SPEED);
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    public float getPan() {
+        return pan;
+    }
+
+    public float getLowCutHz() {
+        return lowCutHz;
+    }
+
+    public float getHighCutHz() {
+        return highCutHz;
+    }
+
+    public float getPitchSemitones() {
+        return pitchSemitones;
+    }
+
+    /** How much faster the pitch is than the original: 2 is an octave up, 0.5 an octave down. */
+    public float getPitchRatio() {
+        return pitchRatio;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /** Returns whether or not the sample has to go through a {@link GrainStretcher} to play. */
+    public boolean isStretched() {
+        return pitchSemitones != 0 || speed != 1;
+    }
+
+    // ------- Private methods -------
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
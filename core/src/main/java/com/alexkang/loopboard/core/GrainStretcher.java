@@ -0,0 +1,213 @@
+package com.alexkang.loopboard.core;
+
+import java.util.Arrays;
+
+/**
+ * Changes a stream's pitch and speed independently, by granular synthesis. Short, overlapping
+ * grains are cut from the source as the play position moves through it at one speed, and each
+ * grain is replayed at another to shift its pitch. Hann windows at half overlap sum to one, so a
+ * steady tone comes through at its own level.
+ *
+ * <p>Everything is allocated up front, so it's safe to use on the audio thread.
+ */
+public class GrainStretcher {
+
+    private static final int READ_CHUNK_FRAMES = 256;
+
+    private final int grainFrames;
+    private final int hopFrames;
+    private final float[] window;
+    private final Grain[] grains = new Grain[2];
+    private final short[] readBuffer = new short[READ_CHUNK_FRAMES];
+
+    // Where in the source the next grain is cut from.
+    private double sourcePosition;
+    // Output frames until the next grain starts.
+    private int hopRemaining;
+    private boolean isFirstGrain;
+
+    private static class Grain {
+
+        private final float[] frames;
+        private boolean isActive;
+        // How far into its window the grain is, and how far it was when it started.
+        private int age;
+        private int firstAge;
+        private float rate;
+
+        private Grain(int capacity) {
+            frames = new float[capacity];
+        }
+    }
+
+    /** @param grainFrames how long each grain is. Tens of milliseconds is typical. */
+    public GrainStretcher(int grainFrames) {
+        this.grainFrames = Math.max(4, grainFrames & ~1);
+        this.hopFrames = this.grainFrames / 2;
+
+        window = new float[this.grainFrames];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / window.length));
+        }
+
+        // Enough source for a whole grain at the highest pitch, plus one frame to interpolate to.
+        float maxPitchRatio = (float) Math.pow(2, EffectSettings.MAX_PITCH_SEMITONES / 12);
+        int capacity = (int) Math.ceil(this.grainFrames * maxPitchRatio) + 2;
+        for (int i = 0; i < grains.length; i++) {
+            grains[i] = new Grain(capacity);
+        }
+        reset(0);
+    }
+
+    /** Drops any grains in flight, and carries on from the given frame of the source. */
+    public void reset(int sourcePosition) {
+        this.sourcePosition = sourcePosition;
+        hopRemaining = 0;
+        isFirstGrain = true;
+        for (Grain grain : grains) {
+            grain.isActive = false;
+        }
+    }
+
+    /**
+     * Moves through the source as if {@code grainCount} grains had been played at the given speed,
+     * without cutting any. The position is stepped grain by grain, the same way playing moves it,
+     * so it lands on exactly the frame that playing would have.
+     */
+    public void skipGrains(PcmStream stream, boolean isLooped, float speed, long grainCount) {
+        for (long i = 0; i < grainCount; i++) {
+            advance(stream, isLooped, speed);
+        }
+    }
+
+    /** How far apart grains start, in output frames. */
+    public int getHopFrames() {
+        return hopFrames;
+    }
+
+    /** The frame of the source that the next grain will be cut from. */
+    public int getSourcePosition() {
+        return (int) sourcePosition;
+    }
+
+    /**
+     * Renders the next {@code length} frames of the stream into {@code destination}. Pitch and
+     * speed changes are picked up at the next grain.
+     *
+     * @param isLooped whether to wrap around at the end of the stream, rather than run out
+     * @param speed how fast to move through the source, without changing the pitch
+     * @param pitchRatio how much to raise the pitch, without changing the speed
+     * @return the number of frames rendered, which is only less than {@code length} once the
+     *     stream has run out
+     */
+    public int process(
+            PcmStream stream,
+            boolean isLooped,
+            float speed,
+            float pitchRatio,
+            float[] destination,
+            int offset,
+            int length) {
+        int frameCount = stream.getFrameCount();
+        if (frameCount == 0) {
+            return 0;
+        }
+
+        int frame = 0;
+        while (frame < length) {
+            if (hopRemaining == 0) {
+                if (isLooped || sourcePosition < frameCount) {
+                    startGrain(stream, isLooped, speed, pitchRatio);
+                } else if (!grains[0].isActive && !grains[1].isActive) {
+                    break;
+                }
+                hopRemaining = hopFrames;
+            }
+
+            int frames = Math.min(length - frame, hopRemaining);
+            renderGrains(destination, offset + frame, frames);
+            frame += frames;
+            hopRemaining -= frames;
+        }
+        return frame;
+    }
+
+    // ------- Private methods -------
+
+    private void startGrain(PcmStream stream, boolean isLooped, float speed, float pitchRatio) {
+        Grain grain = grains[0].isActive ? grains[1] : grains[0];
+        if (grain.isActive) {
+            // Only possible if the hop and the grain got out of step. Take over the older one.
+            grain = grains[0].age > grains[1].age ? grains[0] : grains[1];
+        }
+
+        // The very first grain starts at the top of its window, so attacks aren't faded in.
+        grain.age = isFirstGrain ? hopFrames : 0;
+        grain.firstAge = grain.age;
+        grain.rate = pitchRatio;
+        grain.isActive = true;
+        isFirstGrain = false;
+
+        int frameCount = (int) Math.ceil((grainFrames - grain.firstAge) * pitchRatio) + 2;
+        readSource(stream, isLooped, (int) sourcePosition, grain.frames, frameCount);
+        advance(stream, isLooped, speed);
+    }
+
+    private void advance(PcmStream stream, boolean isLooped, float speed) {
+        sourcePosition += hopFrames * speed;
+        if (isLooped) {
+            sourcePosition %= stream.getFrameCount();
+        }
+    }
+
+    /** Copies source frames into a grain, wrapping around or padding with silence at the end. */
+    private void readSource(
+            PcmStream stream, boolean isLooped, int start, float[] frames, int frameCount) {
+        stream.seek(start);
+        int filled = 0;
+        while (filled < frameCount) {
+            int framesRead =
+                    stream.read(
+                            readBuffer, 0, Math.min(readBuffer.length, frameCount - filled));
+            if (framesRead == 0) {
+                if (isLooped) {
+                    stream.seek(0);
+                    continue;
+                }
+                Arrays.fill(frames, filled, frameCount, 0);
+                return;
+            }
+            for (int i = 0; i < framesRead; i++) {
+                frames[filled + i] = readBuffer[i];
+            }
+            filled += framesRead;
+        }
+    }
+
+    /** Overlaps the active grains into the destination, retiring any that finish. */
+    private void renderGrains(float[] destination, int offset, int length) {
+        Arrays.fill(destination, offset, offset + length, 0);
+        for (Grain grain : grains) {
+            if (!grain.isActive) {
+                continue;
+            }
+
+            int frames = Math.min(length, grainFrames - grain.age);
+            for (int i = 0; i < frames; i++) {
+                int age = grain.age + i;
+                float position = (age - grain.firstAge) * grain.rate;
+                int index = (int) position;
+                float fraction = position - index;
+                float sample =
+                        grain.frames[index]
+                                + (grain.frames[index + 1] - grain.frames[index]) * fraction;
+                destination[offset + i] += sample * window[age];
+            }
+
+            grain.age += frames;
+            if (grain.age >= grainFrames) {
+                grain.isActive = false;
+            }
+        }
+    }
+}
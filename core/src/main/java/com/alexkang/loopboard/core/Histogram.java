@@ -0,0 +1,117 @@
+package com.alexkang.loopboard.core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of non-negative values, with log-scaled buckets: every power of two is
+ * split into four, so any recorded value is within 25% of its bucket. Recording never allocates or
+ * locks, so it's safe to use on the audio thread, and it can be read from any thread at the same
+ * time.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough to cover values up to 2^40, which is over twelve days in microseconds.
+    private static final int BUCKET_COUNT = 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucketFor(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long currentCount = count.get();
+        return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile, between 0 and 100, of everything recorded
+     * so far.
+     */
+    public long getPercentile(double percentile) {
+        long currentCount = count.get();
+        if (currentCount == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(currentCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, target)) {
+                return Math.min(getMax(), bucketLowerBound(i + 1) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Summarises the histogram, with every value divided by {@code scale} and shown in
+     * {@code unit}.
+     */
+    public String format(double scale, String unit) {
+        return String.format(
+                Locale.ENGLISH,
+                "n=%d mean=%.1f%s p50=%.1f%s p90=%.1f%s p99=%.1f%s max=%.1f%s",
+                getCount(),
+                getMean() / scale, unit,
+                getPercentile(50) / scale, unit,
+                getPercentile(90) / scale, unit,
+                getPercentile(99) / scale, unit,
+                getMax() / scale, unit);
+    }
+
+    // ------- Bucketing -------
+
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKET_COUNT - 1, (exponent - 1) * SUB_BUCKETS + subBucket);
+    }
+
+    private static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,27 @@
+package com.alexkang.loopboard.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** File helpers for sample audio. */
+public class PcmFiles {
+
+    private PcmFiles() {}
+
+    /**
+     * Memory-maps a whole file for reading. The mapping stays valid after the file is closed, and
+     * even after the file is replaced or deleted.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.alexkang.loopboard.core;
+
+/**
+ * The one audio format that samples are recorded and stored in: 16-bit mono PCM. They're mixed
+ * down to 16-bit stereo, so each can be panned. The sample rate is whatever the output device runs
+ * at natively, so it's passed around rather than fixed.
+ */
+public class PcmFormat {
+
+    /**
+     * The rate the app used before it followed the device's native rate. Raw PCM files, which don't
+     * say what rate they're at, are assumed to be at this rate.
+     */
+    public static final int DEFAULT_SAMPLE_RATE_HZ = 44100;
+    public static final int BYTES_PER_FRAME = 2;
+    public static final int OUTPUT_CHANNEL_COUNT = 2;
+    public static final int BYTES_PER_OUTPUT_FRAME = BYTES_PER_FRAME * OUTPUT_CHANNEL_COUNT;
+
+    private PcmFormat() {}
+
+    /** The number of frames in the given number of milliseconds. */
+    public static long millisToFrames(long millis, int sampleRateHz) {
+        return millis * sampleRateHz / 1000;
+    }
+
+    public static double framesToMillis(long frames, int sampleRateHz) {
+        return frames * 1000.0 / sampleRateHz;
+    }
+}
@@ -0,0 +1,70 @@
+package com.alexkang.loopboard.core;
+
+/**
+ * Sums any number of mono voices into one stereo block. Voices are added into a float accumulator
+ * so they can overshoot freely, and the block is only clipped back into 16-bit range once at the
+ * end. Nothing is allocated after construction, so it's safe to use on the audio thread.
+ */
+public class PcmMixer {
+
+    private final int blockFrames;
+    // Interleaved left and right.
+    private final float[] accumulator;
+
+    public PcmMixer(int blockFrames) {
+        this.blockFrames = blockFrames;
+        accumulator = new float[blockFrames * PcmFormat.OUTPUT_CHANNEL_COUNT];
+    }
+
+    public int getBlockFrames() {
+        return blockFrames;
+    }
+
+    /** Silences the block before the next round of voices is added. */
+    public void clear() {
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] = 0;
+        }
+    }
+
+    /**
+     * Adds the first {@code length} frames of {@code source} into the block, with a gain for each
+     * side. Each gain glides evenly from its first value to its second across the frames, so
+     * changes don't click.
+     */
+    public void add(
+            float[] source,
+            int length,
+            float leftFrom,
+            float leftTo,
+            float rightFrom,
+            float rightTo) {
+        if (leftFrom == leftTo && rightFrom == rightTo) {
+            for (int i = 0; i < length; i++) {
+                accumulator[2 * i] += source[i] * leftTo;
+                accumulator[2 * i + 1] += source[i] * rightTo;
+            }
+            return;
+        }
+
+        float leftStep = (leftTo - leftFrom) / length;
+        float rightStep = (rightTo - rightFrom) / length;
+        for (int i = 0; i < length; i++) {
+            accumulator[2 * i] += source[i] * (leftFrom + leftStep * i);
+            accumulator[2 * i + 1] += source[i] * (rightFrom + rightStep * i);
+        }
+    }
+
+    /** Clips the summed block back into 16-bit range, interleaved for the output. */
+    public void mixDown(short[] destination) {
+        for (int i = 0; i < accumulator.length; i++) {
+            float sample = accumulator[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            destination[i] = (short) sample;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.alexkang.loopboard.core;
+
+/**
+ * A cursor over a sample's 16-bit mono PCM. The audio engine pulls each voice's audio through one
+ * of these a chunk at a time, so it doesn't matter whether the frames come straight out of a
+ * mapped file or out of a decoder.
+ */
+public interface PcmStream {
+
+    /** The total number of frames in the sample. */
+    int getFrameCount();
+
+    /** The frame that the next {@link #read} will start at. */
+    int getPosition();
+
+    /**
+     * Moves the cursor to the given frame. Must not allocate, since it runs on the audio thread.
+     */
+    void seek(int frame);
+
+    /**
+     * Copies up to {@code length} frames into {@code destination} and advances the cursor. Must not
+     * allocate, since it runs on the audio thread.
+     *
+     * @return the number of frames copied, which is only zero at the end of the sample
+     */
+    int read(short[] destination, int offset, int length);
+
+    /**
+     * Opens another cursor over the same audio, starting from the top, so the sample can play
+     * more than once at a time. This allocates, so don't call it from the audio thread.
+     */
+    PcmStream duplicate();
+}
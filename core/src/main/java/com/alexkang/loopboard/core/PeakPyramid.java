@@ -0,0 +1,256 @@
+package com.alexkang.loopboard.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A sample's waveform at several zoom levels, small enough to draw from without touching the audio.
+ * The finest level holds the minimum and maximum of every {@link #BASE_BLOCK_FRAMES} frames, each
+ * coarser level merges pairs of blocks from the one below, and every peak is stored as a single
+ * signed byte. Even the finest level of a ten second take is under 2 KB, and a row draws from a
+ * coarser level of a few hundred bytes.
+ *
+ * <p>Pyramids live in a sidecar file next to the audio, named by {@link #sidecarFor}.
+ */
+public class PeakPyramid {
+
+    public static final String SIDECAR_SUFFIX = ".peaks";
+    public static final int BASE_BLOCK_FRAMES = 512;
+
+    // "LBP1"
+    private static final int MAGIC = 0x4C425031;
+    // Levels stop once they're coarser than any row would ever draw.
+    private static final int MIN_LEVEL_BLOCKS = 32;
+
+    private final int frameCount;
+    // Interleaved minimum and maximum peaks, finest level first.
+    private final byte[][] levels;
+
+    private PeakPyramid(int frameCount, byte[][] levels) {
+        this.frameCount = frameCount;
+        this.levels = levels;
+    }
+
+    /** The sidecar file that holds the pyramid for an audio file. */
+    public static File sidecarFor(File audioFile) {
+        return new File(audioFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /** Builds a pyramid by reading a stream from start to finish. */
+    public static PeakPyramid fromStream(PcmStream stream) {
+        Builder builder = new Builder(null);
+        short[] chunk = new short[BASE_BLOCK_FRAMES];
+        stream.seek(0);
+        int framesRead;
+        while ((framesRead = stream.read(chunk, 0, chunk.length)) > 0) {
+            builder.add(chunk, framesRead);
+        }
+        stream.seek(0);
+        return builder.build();
+    }
+
+    public static PeakPyramid read(File file) throws IOException {
+        DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /** Reads a pyramid from a buffer holding the contents of a sidecar file. */
+    public static PeakPyramid read(ByteBuffer sidecar) throws IOException {
+        byte[] bytes = new byte[sidecar.remaining()];
+        sidecar.duplicate().get(bytes);
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static PeakPyramid read(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a peak file");
+        }
+        int frameCount = input.readInt();
+        byte[][] levels = new byte[input.readInt()][];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new byte[input.readInt() * 2];
+            input.readFully(levels[i]);
+        }
+        return new PeakPyramid(frameCount, levels);
+    }
+
+    /** Writes the pyramid out, replacing the file in one step so readers never see half of it. */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(frameCount);
+            output.writeInt(levels.length);
+            for (byte[] level : levels) {
+                output.writeInt(level.length / 2);
+                output.write(level);
+            }
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file.getName());
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the coarsest level with at least {@code minBlocks} blocks, or the finest level if
+     * none has that many. Block {@code i} has its minimum at index {@code 2 * i}, and its maximum
+     * right after.
+     */
+    public byte[] getLevel(int minBlocks) {
+        for (int i = levels.length - 1; i > 0; i--) {
+            if (levels[i].length / 2 >= minBlocks) {
+                return levels[i];
+            }
+        }
+        return levels[0];
+    }
+
+    /**
+     * Accumulates a pyramid from audio as it goes past. As a channel, it takes little-endian 16-bit
+     * PCM and passes it straight through to another channel, if there is one.
+     */
+    public static class Builder implements WritableByteChannel {
+
+        private final WritableByteChannel output;
+        private byte[] peaks = new byte[256];
+        private int blockCount = 0;
+        private int frameCount = 0;
+        private int blockFrames = 0;
+        private int blockMin = 0;
+        private int blockMax = 0;
+        private int lowByte = -1;
+        private boolean isOpen = true;
+
+        public Builder(WritableByteChannel output) {
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            for (int i = source.position(); i < source.limit(); i++) {
+                int value = source.get(i) & 0xFF;
+                if (lowByte < 0) {
+                    lowByte = value;
+                    continue;
+                }
+                add((short) ((value << 8) | lowByte));
+                lowByte = -1;
+            }
+
+            if (output != null) {
+                while (source.hasRemaining()) {
+                    output.write(source);
+                }
+            } else {
+                source.position(source.limit());
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        /** Closes the channel this builder passes audio through to. */
+        @Override
+        public void close() throws IOException {
+            if (!isOpen) {
+                return;
+            }
+            isOpen = false;
+            if (output != null) {
+                output.close();
+            }
+        }
+
+        /** Returns the pyramid for everything added so far. */
+        public PeakPyramid build() {
+            int baseBlocks = blockCount + (blockFrames > 0 ? 1 : 0);
+            byte[] base = new byte[baseBlocks * 2];
+            System.arraycopy(peaks, 0, base, 0, blockCount * 2);
+            if (blockFrames > 0) {
+                base[baseBlocks * 2 - 2] = toPeak(blockMin);
+                base[baseBlocks * 2 - 1] = toPeak(blockMax);
+            }
+
+            // Each level up merges pairs of blocks from the one below.
+            int levelCount = 1;
+            for (int blocks = baseBlocks; blocks / 2 >= MIN_LEVEL_BLOCKS; blocks /= 2) {
+                levelCount++;
+            }
+            byte[][] levels = new byte[levelCount][];
+            levels[0] = base;
+            for (int level = 1; level < levelCount; level++) {
+                byte[] finer = levels[level - 1];
+                byte[] coarser = new byte[(finer.length / 2 + 1) / 2 * 2];
+                for (int block = 0; block < coarser.length / 2; block++) {
+                    int left = block * 4;
+                    int right = Math.min(left + 2, finer.length - 2);
+                    coarser[block * 2] = (byte) Math.min(finer[left], finer[right]);
+                    coarser[block * 2 + 1] = (byte) Math.max(finer[left + 1], finer[right + 1]);
+                }
+                levels[level] = coarser;
+            }
+            return new PeakPyramid(frameCount, levels);
+        }
+
+        private void add(short[] frames, int length) {
+            for (int i = 0; i < length; i++) {
+                add(frames[i]);
+            }
+        }
+
+        private void add(short frame) {
+            if (blockFrames == 0) {
+                blockMin = frame;
+                blockMax = frame;
+            } else {
+                blockMin = Math.min(blockMin, frame);
+                blockMax = Math.max(blockMax, frame);
+            }
+            frameCount++;
+            if (++blockFrames < BASE_BLOCK_FRAMES) {
+                return;
+            }
+
+            if (blockCount * 2 == peaks.length) {
+                byte[] newPeaks = new byte[peaks.length * 2];
+                System.arraycopy(peaks, 0, newPeaks, 0, peaks.length);
+                peaks = newPeaks;
+            }
+            peaks[blockCount * 2] = toPeak(blockMin);
+            peaks[blockCount * 2 + 1] = toPeak(blockMax);
+            blockCount++;
+            blockFrames = 0;
+        }
+
+        private static byte toPeak(int frame) {
+            return (byte) (frame >> 8);
+        }
+    }
+}
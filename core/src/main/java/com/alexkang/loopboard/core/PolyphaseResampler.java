@@ -0,0 +1,228 @@
+package com.alexkang.loopboard.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Converts audio from one sample rate to another with a windowed-sinc polyphase filter. The ratio
+ * between the rates is reduced to L/M, so every output frame lands on one of L offsets between two
+ * input frames, and each offset has its own precomputed set of filter taps. Converting then costs
+ * one short dot product per output frame. The filter cuts off just below the lower of the two
+ * Nyquist frequencies, so downsampling doesn't alias.
+ *
+ * <p>As a channel, it takes little-endian 16-bit PCM and passes the converted audio through to
+ * another channel. It's meant for converting whole files once, not for the audio thread.
+ */
+public class PolyphaseResampler implements WritableByteChannel {
+
+    // Taps either side of each output frame when upsampling. Downsampling widens the filter.
+    private static final int HALF_TAPS = 16;
+    // Rate pairs that would need more offsets than this share the nearest one.
+    private static final int MAX_PHASES = 512;
+    // Where the passband ends, as a fraction of the lower Nyquist frequency.
+    private static final double ROLLOFF = 0.92;
+    // The Kaiser window's shape, for about 80 dB of stopband rejection.
+    private static final double KAISER_BETA = 8;
+    private static final int OUTPUT_CHUNK_FRAMES = 4096;
+
+    private final WritableByteChannel output;
+    private final long upFactor;
+    private final long downFactor;
+    private final int phaseCount;
+    private final int halfTaps;
+    // Each phase's taps, one phase after another.
+    private final float[] taps;
+    private final ByteBuffer outputBuffer =
+            ByteBuffer.allocate(OUTPUT_CHUNK_FRAMES * PcmFormat.BYTES_PER_FRAME)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+    // The input frames that are still needed, the first of which is input frame historyStart.
+    // Frames before the start of the input count as silence.
+    private float[] history = new float[OUTPUT_CHUNK_FRAMES];
+    private int historyLength;
+    private long historyStart;
+    private long inputFrames = 0;
+    private long outputFrames = 0;
+    private int lowByte = -1;
+    private boolean isOpen = true;
+
+    public PolyphaseResampler(WritableByteChannel output, int inputRateHz, int outputRateHz) {
+        this.output = output;
+        long divisor = gcd(inputRateHz, outputRateHz);
+        upFactor = outputRateHz / divisor;
+        downFactor = inputRateHz / divisor;
+        phaseCount = (int) Math.min(upFactor, MAX_PHASES);
+
+        double ratio = (double) outputRateHz / inputRateHz;
+        halfTaps = (int) Math.ceil(HALF_TAPS / Math.min(1, ratio));
+        taps = createTaps(phaseCount, halfTaps, 0.5 * ROLLOFF * Math.min(1, ratio));
+
+        historyLength = halfTaps - 1;
+        historyStart = -historyLength;
+        if (history.length < halfTaps * 4) {
+            history = new float[halfTaps * 4];
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+            int value = source.get() & 0xFF;
+            if (lowByte < 0) {
+                lowByte = value;
+                continue;
+            }
+
+            append((short) ((value << 8) | lowByte));
+            lowByte = -1;
+        }
+        convert(Long.MAX_VALUE);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    /** Converts the end of the audio, and closes the output. */
+    @Override
+    public void close() throws IOException {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+
+        long totalInputFrames = inputFrames;
+        // Frames after the end of the input count as silence too.
+        for (int i = 0; i < halfTaps; i++) {
+            append(0);
+        }
+        convert((totalInputFrames * upFactor + downFactor - 1) / downFactor);
+        flushOutput();
+        output.close();
+    }
+
+    // ------- Private methods -------
+
+    private void append(float frame) {
+        if (historyLength == history.length) {
+            discardHistory();
+            if (historyLength == history.length) {
+                float[] newHistory = new float[history.length * 2];
+                System.arraycopy(history, 0, newHistory, 0, historyLength);
+                history = newHistory;
+            }
+        }
+        history[historyLength++] = frame;
+        inputFrames++;
+    }
+
+    /** Writes out every output frame whose taps are all in, up to a limit. */
+    private void convert(long maxOutputFrames) throws IOException {
+        int tapCount = halfTaps * 2;
+        long historyEnd = historyStart + historyLength;
+        while (outputFrames < maxOutputFrames) {
+            long position = outputFrames * downFactor;
+            long frame = position / upFactor;
+            if (frame + halfTaps >= historyEnd) {
+                break;
+            }
+
+            int phase = (int) (position % upFactor * phaseCount / upFactor);
+            int first = (int) (frame - halfTaps + 1 - historyStart);
+            int tapOffset = phase * tapCount;
+            float sum = 0;
+            for (int i = 0; i < tapCount; i++) {
+                sum += history[first + i] * taps[tapOffset + i];
+            }
+
+            outputBuffer.putShort(
+                    (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sum))));
+            if (!outputBuffer.hasRemaining()) {
+                flushOutput();
+            }
+            outputFrames++;
+        }
+    }
+
+    /** Drops the input frames that no output frame still to come will need. */
+    private void discardHistory() {
+        long nextFrame = outputFrames * downFactor / upFactor;
+        int discard = (int) Math.max(0, nextFrame - halfTaps + 1 - historyStart);
+        discard = Math.min(discard, historyLength);
+        System.arraycopy(history, discard, history, 0, historyLength - discard);
+        historyLength -= discard;
+        historyStart += discard;
+    }
+
+    private void flushOutput() throws IOException {
+        outputBuffer.flip();
+        while (outputBuffer.hasRemaining()) {
+            output.write(outputBuffer);
+        }
+        outputBuffer.clear();
+    }
+
+    // ------- Filter design -------
+
+    /**
+     * Designs a low-pass filter and splits it into phases. Phase {@code p} produces the frame
+     * {@code p / phaseCount} of the way from one input frame to the next, and its taps are scaled
+     * to sum to one so that every phase has the same gain.
+     *
+     * @param cutoff the cutoff frequency, in cycles per input frame
+     */
+    private static float[] createTaps(int phaseCount, int halfTaps, double cutoff) {
+        int tapCount = halfTaps * 2;
+        float[] taps = new float[phaseCount * tapCount];
+        double windowScale = besselI0(KAISER_BETA);
+        for (int phase = 0; phase < phaseCount; phase++) {
+            double fraction = (double) phase / phaseCount;
+            double sum = 0;
+            double[] phaseTaps = new double[tapCount];
+            for (int i = 0; i < tapCount; i++) {
+                double x = i - halfTaps + 1 - fraction;
+                double window = x / halfTaps;
+                double kaiser =
+                        Math.abs(window) >= 1
+                                ? 0
+                                : besselI0(KAISER_BETA * Math.sqrt(1 - window * window))
+                                        / windowScale;
+                phaseTaps[i] = 2 * cutoff * sinc(2 * cutoff * x) * kaiser;
+                sum += phaseTaps[i];
+            }
+            for (int i = 0; i < tapCount; i++) {
+                taps[phase * tapCount + i] = (float) (phaseTaps[i] / sum);
+            }
+        }
+        return taps;
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /** The zeroth-order modified Bessel function of the first kind, by its power series. */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+}
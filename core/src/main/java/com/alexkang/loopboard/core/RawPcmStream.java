@@ -0,0 +1,42 @@
+package com.alexkang.loopboard.core;
+
+import java.nio.ShortBuffer;
+
+/** Reads uncompressed PCM, typically straight out of a memory-mapped file. */
+public class RawPcmStream implements PcmStream {
+
+    private final ShortBuffer pcm;
+
+    public RawPcmStream(ShortBuffer pcm) {
+        // Keep our own cursor so several streams can share the same mapping.
+        this.pcm = pcm.duplicate();
+        this.pcm.rewind();
+    }
+
+    @Override
+    public int getFrameCount() {
+        return pcm.limit();
+    }
+
+    @Override
+    public int getPosition() {
+        return pcm.position();
+    }
+
+    @Override
+    public void seek(int frame) {
+        pcm.position(Math.max(0, Math.min(frame, pcm.limit())));
+    }
+
+    @Override
+    public int read(short[] destination, int offset, int length) {
+        int frames = Math.min(length, pcm.remaining());
+        pcm.get(destination, offset, frames);
+        return frames;
+    }
+
+    @Override
+    public PcmStream duplicate() {
+        return new RawPcmStream(pcm);
+    }
+}
@@ -0,0 +1,71 @@
+package com.alexkang.loopboard.core;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loads windows for {@link ReadAheadStream}s on a thread of its own, so the disk reads and decoding
+ * behind long samples never happen on the render thread. Requests come from the render thread
+ * through a lock-free queue, and asking for a load never blocks or allocates.
+ */
+public class ReadAheadLoader {
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final SpscQueue<ReadAheadStream> requests = new SpscQueue<>(QUEUE_CAPACITY);
+    private final Thread loaderThread = new Thread(this::run, "ReadAheadLoader");
+
+    private volatile boolean isRunning = true;
+    private volatile int loadCount = 0;
+    // Only written by the render thread.
+    private volatile int missCount = 0;
+
+    public ReadAheadLoader() {
+        loaderThread.setDaemon(true);
+        loaderThread.setPriority(Thread.MAX_PRIORITY);
+        loaderThread.start();
+    }
+
+    /**
+     * Asks for a stream's windows to be brought up to date. Only call this from the render thread.
+     * If the queue is full the request is dropped, and the stream simply asks again at its next
+     * miss.
+     */
+    public void requestLoad(ReadAheadStream stream) {
+        if (requests.offer(stream)) {
+            LockSupport.unpark(loaderThread);
+        }
+    }
+
+    /** How many windows weren't ready in time, and played as silence. */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        LockSupport.unpark(loaderThread);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ENGLISH, "ReadAheadLoader[%d loads, %d misses]", loadCount, missCount);
+    }
+
+    /** Only called from the render thread. */
+    void onMiss() {
+        missCount++;
+    }
+
+    private void run() {
+        while (isRunning) {
+            ReadAheadStream stream;
+            while ((stream = requests.poll()) != null) {
+                stream.load();
+                loadCount++;
+            }
+            LockSupport.park(this);
+        }
+    }
+}
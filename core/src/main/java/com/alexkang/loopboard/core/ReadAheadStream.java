@@ -0,0 +1,228 @@
+package com.alexkang.loopboard.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Plays a long sample without holding all of it in memory, and without the render thread ever
+ * waiting on the disk. The sample is split into windows. The first window is decoded up front and
+ * shared by every cursor, so the sample starts instantly and loops back around without a gap. Past
+ * that, each cursor has two window-sized slots that a {@link ReadAheadLoader} fills from the
+ * source on its own thread: while one plays, the next window loads into the other.
+ *
+ * <p>A window that isn't ready in time plays as silence rather than holding up the mix, and counts
+ * as a miss. Reads and seeks must all come from one thread, the render thread, since that's the
+ * one thread allowed to ask the loader for windows.
+ */
+public class ReadAheadStream implements PcmStream {
+
+    private static final int SLOT_COUNT = 2;
+
+    private final PcmStream source;
+    private final short[] head;
+    private final int windowFrames;
+    private final int frameCount;
+    private final ReadAheadLoader loader;
+    // Allocated on the loading thread the first time they're needed, so idle cursors cost nothing.
+    private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<>(SLOT_COUNT);
+
+    // The window under the cursor, for the loader to work ahead of. None until the render thread
+    // first reads or seeks, which is when the loader is first asked for the window after it.
+    private volatile int playingWindow = -1;
+    // Only touched by the render thread.
+    private int position = 0;
+
+    /** A window of the source, once the loader has filled it. */
+    private static class Slot {
+
+        private final short[] frames;
+        // Which window the frames hold, or -1 while they're being written.
+        private volatile int window = -1;
+
+        private Slot(int windowFrames) {
+            frames = new short[windowFrames];
+        }
+    }
+
+    /**
+     * Decodes the first window of a sample, to share between every cursor over it. Reads from the
+     * start of the stream, so call it before handing the stream over.
+     */
+    public static short[] readHead(PcmStream source, int windowFrames) {
+        short[] head = new short[Math.min(windowFrames, source.getFrameCount())];
+        source.seek(0);
+        int filled = 0;
+        while (filled < head.length) {
+            int framesRead = source.read(head, filled, head.length - filled);
+            if (framesRead == 0) {
+                break;
+            }
+            filled += framesRead;
+        }
+        return head;
+    }
+
+    /**
+     * @param source where windows are loaded from. Only the loader touches it from here on.
+     * @param head the first window, from {@link #readHead}
+     */
+    public ReadAheadStream(
+            PcmStream source, short[] head, int windowFrames, ReadAheadLoader loader) {
+        this.source = source;
+        this.head = head;
+        this.windowFrames = windowFrames;
+        this.frameCount = source.getFrameCount();
+        this.loader = loader;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public void seek(int frame) {
+        position = Math.max(0, Math.min(frame, frameCount));
+        // Even within the same window, a seek can leave the cursor with nothing loaded ahead of it.
+        int window = getPositionWindow();
+        if (window != playingWindow || !isLoaded(window) || !isLoaded(window + 1)) {
+            playingWindow = window;
+            loader.requestLoad(this);
+        }
+    }
+
+    /** Copies frames from no more than one window at a time. */
+    @Override
+    public int read(short[] destination, int offset, int length) {
+        int frames = Math.min(length, frameCount - position);
+        if (frames <= 0) {
+            return 0;
+        }
+
+        int window = position / windowFrames;
+        int windowOffset = position - window * windowFrames;
+        frames = Math.min(frames, windowFrames - windowOffset);
+        if (window == 0) {
+            System.arraycopy(head, windowOffset, destination, offset, frames);
+        } else if (!copyFromSlot(window, windowOffset, destination, offset, frames)) {
+            Arrays.fill(destination, offset, offset + frames, (short) 0);
+            loader.onMiss();
+            loader.requestLoad(this);
+        }
+
+        position += frames;
+        onPosition();
+        return frames;
+    }
+
+    /** Opens another cursor over the same sample, sharing its first window. */
+    @Override
+    public PcmStream duplicate() {
+        return new ReadAheadStream(source.duplicate(), head, windowFrames, loader);
+    }
+
+    /**
+     * Loads the window under the cursor and the one after it, if they aren't loaded yet. Runs on
+     * the loader's thread.
+     */
+    void load() {
+        int window = playingWindow;
+        if (window > 0) {
+            loadWindow(window, window);
+        }
+        int nextWindow = window + 1;
+        if ((long) nextWindow * windowFrames < frameCount) {
+            loadWindow(nextWindow, window);
+        }
+    }
+
+    // ------- Private methods -------
+
+    /** Tells the loader when the cursor moves into another window. */
+    private void onPosition() {
+        int window = getPositionWindow();
+        if (window != playingWindow) {
+            playingWindow = window;
+            loader.requestLoad(this);
+        }
+    }
+
+    private int getPositionWindow() {
+        return Math.max(0, Math.min(position, frameCount - 1)) / windowFrames;
+    }
+
+    /** Whether a window can be read without a miss. Past the end counts as loaded. */
+    private boolean isLoaded(int window) {
+        if (window == 0 || (long) window * windowFrames >= frameCount) {
+            return true;
+        }
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.window == window) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies from whichever slot holds the window, checking afterwards that the loader didn't
+     * start refilling it mid-copy.
+     *
+     * @return false if the window isn't loaded
+     */
+    private boolean copyFromSlot(
+            int window, int windowOffset, short[] destination, int offset, int frames) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.window == window) {
+                System.arraycopy(slot.frames, windowOffset, destination, offset, frames);
+                return slot.window == window;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills a slot with a window, leaving alone whichever slots hold the window the cursor is
+     * playing and the one after it.
+     */
+    private void loadWindow(int window, int playing) {
+        Slot target = null;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.window == window) {
+                return;
+            }
+            if (slot == null) {
+                slot = new Slot(windowFrames);
+                slots.set(i, slot);
+            }
+            if (target == null && slot.window != playing && slot.window != playing + 1) {
+                target = slot;
+            }
+        }
+        if (target == null) {
+            return;
+        }
+
+        target.window = -1;
+        int start = window * windowFrames;
+        int length = Math.min(windowFrames, frameCount - start);
+        source.seek(start);
+        int filled = 0;
+        while (filled < length) {
+            int framesRead = source.read(target.frames, filled, length - filled);
+            if (framesRead == 0) {
+                break;
+            }
+            filled += framesRead;
+        }
+        target.window = window;
+    }
+}
@@ -0,0 +1,399 @@
+package com.alexkang.loopboard.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A small lossless codec for recorded samples, along the lines of FLAC's fixed predictors. Audio is
+ * split into blocks, each block uses whichever fixed polynomial predictor leaves the smallest
+ * residuals, and the residuals are Rice coded. Even a noisy recording shrinks by about a third,
+ * and quiet passages cost next to nothing.
+ *
+ * <p>A file is a header, the encoded blocks, a table of each block's byte offset, and a footer that
+ * points at the table. The table lets a decoder jump straight to any block.
+ */
+public class SampleCodec {
+
+    public static final int BLOCK_SIZE = 4096;
+
+    // "LBC1", at both ends of the file so a raw recording is never mistaken for one of ours.
+    private static final int MAGIC = 0x4C424331;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 16;
+
+    private static final int MAX_ORDER = 4;
+    private static final int LENGTH_BITS = 16;
+    private static final int ORDER_BITS = 3;
+    private static final int RICE_PARAMETER_BITS = 5;
+    private static final int MAX_RICE_PARAMETER = 30;
+
+    // Residuals whose quotient doesn't fit in a short unary run are stored verbatim instead.
+    private static final int ESCAPE_QUOTIENT = 24;
+    private static final int ESCAPE_BITS = 32;
+
+    // Enough for a block where every residual had to be escaped.
+    private static final int MAX_ENCODED_BLOCK_SIZE =
+            BLOCK_SIZE * (ESCAPE_QUOTIENT + ESCAPE_BITS) / 8 + 64;
+
+    /** Returns whether or not a mapped file was written by {@link Encoder}. */
+    public static boolean isEncoded(ByteBuffer file) {
+        ByteBuffer view = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int size = view.limit();
+        return size >= HEADER_SIZE + FOOTER_SIZE
+                && view.getInt(0) == MAGIC
+                && view.getInt(size - 4) == MAGIC;
+    }
+
+    /**
+     * Returns the sample rate a mapped sample file was saved at. Raw PCM doesn't say, so it's
+     * assumed to be at {@link PcmFormat#DEFAULT_SAMPLE_RATE_HZ}.
+     */
+    public static int getSampleRate(ByteBuffer file) {
+        if (!isEncoded(file)) {
+            return PcmFormat.DEFAULT_SAMPLE_RATE_HZ;
+        }
+        return file.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(4);
+    }
+
+    /**
+     * Encodes little-endian 16-bit PCM as it's written, and passes the encoded blocks through to
+     * another channel. Closing the encoder writes the seek table and footer, and closes the output.
+     */
+    public static class Encoder implements WritableByteChannel {
+
+        private final WritableByteChannel output;
+        private final short[] block = new short[BLOCK_SIZE];
+        private final long[] orderCosts = new long[MAX_ORDER + 1];
+        private final BitWriter bitWriter = new BitWriter(MAX_ENCODED_BLOCK_SIZE);
+
+        private int[] blockOffsets = new int[64];
+        private int blockCount = 0;
+        private int blockLength = 0;
+        private int frameCount = 0;
+        private int encodedLength = 0;
+        private int lowByte = -1;
+        private boolean isOpen = true;
+
+        /** Starts a file of audio at the given sample rate, which is saved in its header. */
+        public Encoder(WritableByteChannel output, int sampleRateHz) throws IOException {
+            this.output = output;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(sampleRateHz).flip();
+            writeFully(header);
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            while (source.hasRemaining()) {
+                int value = source.get() & 0xFF;
+                if (lowByte < 0) {
+                    lowByte = value;
+                    continue;
+                }
+
+                block[blockLength++] = (short) ((value << 8) | lowByte);
+                lowByte = -1;
+                if (blockLength == BLOCK_SIZE) {
+                    encodeBlock();
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!isOpen) {
+                return;
+            }
+            isOpen = false;
+
+            if (blockLength > 0) {
+                encodeBlock();
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate(blockCount * 4 + FOOTER_SIZE);
+            for (int i = 0; i < blockCount; i++) {
+                footer.putInt(blockOffsets[i]);
+            }
+            footer.putInt(frameCount).putInt(blockCount).putInt(encodedLength).putInt(MAGIC);
+            footer.flip();
+            writeFully(footer);
+            output.close();
+        }
+
+        private void encodeBlock() throws IOException {
+            int order = chooseOrder();
+
+            bitWriter.reset();
+            bitWriter.write(blockLength - 1, LENGTH_BITS);
+            bitWriter.write(order, ORDER_BITS);
+            for (int i = 0; i < order; i++) {
+                bitWriter.write(block[i], 16);
+            }
+
+            // Pick the Rice parameter that best fits the average residual.
+            int residualCount = blockLength - order;
+            long residualSum = orderCosts[order];
+            int riceParameter = 0;
+            while (riceParameter < MAX_RICE_PARAMETER
+                    && ((long) residualCount << (riceParameter + 1)) < residualSum) {
+                riceParameter++;
+            }
+            bitWriter.write(riceParameter, RICE_PARAMETER_BITS);
+
+            for (int i = order; i < blockLength; i++) {
+                int residual = block[i] - predict(block, i, order);
+                bitWriter.writeRice((residual << 1) ^ (residual >> 31), riceParameter);
+            }
+            ByteBuffer encoded = bitWriter.finish();
+
+            if (blockCount == blockOffsets.length) {
+                int[] newOffsets = new int[blockOffsets.length * 2];
+                System.arraycopy(blockOffsets, 0, newOffsets, 0, blockCount);
+                blockOffsets = newOffsets;
+            }
+            blockOffsets[blockCount++] = HEADER_SIZE + encodedLength;
+            encodedLength += encoded.remaining();
+            frameCount += blockLength;
+            blockLength = 0;
+            writeFully(encoded);
+        }
+
+        /** Finds the fixed predictor order with the smallest total residual for this block. */
+        private int chooseOrder() {
+            for (int order = 0; order <= MAX_ORDER; order++) {
+                orderCosts[order] = 0;
+            }
+            for (int i = MAX_ORDER; i < blockLength; i++) {
+                for (int order = 0; order <= MAX_ORDER; order++) {
+                    int residual = block[i] - predict(block, i, order);
+                    orderCosts[order] += Math.abs((long) residual) * 2;
+                }
+            }
+
+            // Short blocks don't have room for the higher orders' warm-up samples.
+            int bestOrder = 0;
+            for (int order = 1; order <= Math.min(MAX_ORDER, blockLength - 1); order++) {
+                if (orderCosts[order] < orderCosts[bestOrder]) {
+                    bestOrder = order;
+                }
+            }
+            return bestOrder;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        }
+    }
+
+    /** Streams frames back out of a mapped file written by {@link Encoder}, a block at a time. */
+    public static class Decoder implements PcmStream {
+
+        private final ByteBuffer file;
+        private final int frameCount;
+        private final int blockCount;
+        private final int tableOffset;
+        private final short[] block = new short[BLOCK_SIZE];
+        private final BitReader bitReader;
+
+        private int blockIndex = -1;
+        private int blockLength = 0;
+        private int positionInBlock = 0;
+
+        public Decoder(ByteBuffer file) {
+            this.file = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int footerOffset = this.file.limit() - FOOTER_SIZE;
+            frameCount = this.file.getInt(footerOffset);
+            blockCount = this.file.getInt(footerOffset + 4);
+            tableOffset = HEADER_SIZE + this.file.getInt(footerOffset + 8);
+            bitReader = new BitReader(this.file);
+            seek(0);
+        }
+
+        /** The sample rate the audio was recorded at. */
+        public int getSampleRate() {
+            return file.getInt(4);
+        }
+
+        @Override
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        @Override
+        public int getPosition() {
+            return blockIndex < 0 ? 0 : blockIndex * BLOCK_SIZE + positionInBlock;
+        }
+
+        @Override
+        public void seek(int frame) {
+            if (blockCount == 0) {
+                return;
+            }
+
+            frame = Math.max(0, Math.min(frame, frameCount));
+            int targetBlock = Math.min(frame / BLOCK_SIZE, blockCount - 1);
+            if (targetBlock != blockIndex) {
+                decodeBlock(targetBlock);
+            }
+            positionInBlock = frame - targetBlock * BLOCK_SIZE;
+        }
+
+        @Override
+        public int read(short[] destination, int offset, int length) {
+            int framesRead = 0;
+            while (framesRead < length) {
+                if (positionInBlock >= blockLength) {
+                    if (blockIndex + 1 >= blockCount) {
+                        break;
+                    }
+                    decodeBlock(blockIndex + 1);
+                    positionInBlock = 0;
+                }
+
+                int frames = Math.min(length - framesRead, blockLength - positionInBlock);
+                System.arraycopy(block, positionInBlock, destination, offset + framesRead, frames);
+                positionInBlock += frames;
+                framesRead += frames;
+            }
+            return framesRead;
+        }
+
+        @Override
+        public PcmStream duplicate() {
+            return new Decoder(file);
+        }
+
+        private void decodeBlock(int index) {
+            bitReader.seek(file.getInt(tableOffset + index * 4));
+            blockLength = bitReader.read(LENGTH_BITS) + 1;
+            int order = bitReader.read(ORDER_BITS);
+            for (int i = 0; i < order; i++) {
+                block[i] = (short) bitReader.read(16);
+            }
+
+            int riceParameter = bitReader.read(RICE_PARAMETER_BITS);
+            for (int i = order; i < blockLength; i++) {
+                int value = bitReader.readRice(riceParameter);
+                int residual = (value >>> 1) ^ -(value & 1);
+                block[i] = (short) (residual + predict(block, i, order));
+            }
+            blockIndex = index;
+        }
+    }
+
+    // ------- Shared helpers -------
+
+    /** The fixed polynomial predictors, from FLAC. */
+    private static int predict(short[] samples, int i, int order) {
+        switch (order) {
+            case 1:
+                return samples[i - 1];
+            case 2:
+                return 2 * samples[i - 1] - samples[i - 2];
+            case 3:
+                return 3 * samples[i - 1] - 3 * samples[i - 2] + samples[i - 3];
+            case 4:
+                return 4 * samples[i - 1] - 6 * samples[i - 2] + 4 * samples[i - 3]
+                        - samples[i - 4];
+            default:
+                return 0;
+        }
+    }
+
+    /** Packs bits most significant first into a reusable buffer. */
+    private static class BitWriter {
+
+        private final ByteBuffer buffer;
+        private long bits = 0;
+        private int bitCount = 0;
+
+        private BitWriter(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        private void reset() {
+            buffer.clear();
+            bits = 0;
+            bitCount = 0;
+        }
+
+        private void write(int value, int length) {
+            bits = (bits << length) | (value & ((1L << length) - 1));
+            bitCount += length;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                buffer.put((byte) (bits >>> bitCount));
+            }
+        }
+
+        private void writeRice(int value, int riceParameter) {
+            int quotient = value >>> riceParameter;
+            if (quotient >= ESCAPE_QUOTIENT) {
+                write(0, ESCAPE_QUOTIENT);
+                write(value, ESCAPE_BITS);
+                return;
+            }
+            write(1, quotient + 1);
+            write(value, riceParameter);
+        }
+
+        /** Pads out to a byte boundary and returns the block, ready to be written. */
+        private ByteBuffer finish() {
+            if (bitCount > 0) {
+                write(0, 8 - bitCount);
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /** Reads bits most significant first from anywhere in a buffer. */
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private int position = 0;
+        private long bits = 0;
+        private int bitCount = 0;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void seek(int position) {
+            this.position = position;
+            bits = 0;
+            bitCount = 0;
+        }
+
+        private int read(int length) {
+            while (bitCount < length) {
+                bits = (bits << 8) | (buffer.get(position++) & 0xFF);
+                bitCount += 8;
+            }
+            bitCount -= length;
+            return (int) ((bits >>> bitCount) & ((1L << length) - 1));
+        }
+
+        private int readRice(int riceParameter) {
+            int quotient = 0;
+            while (read(1) == 0) {
+                if (++quotient == ESCAPE_QUOTIENT) {
+                    return read(ESCAPE_BITS);
+                }
+            }
+            return (quotient << riceParameter) | read(riceParameter);
+        }
+    }
+}
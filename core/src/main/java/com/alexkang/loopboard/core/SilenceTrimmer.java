@@ -0,0 +1,241 @@
+package com.alexkang.loopboard.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Trims leading and trailing silence from a take as it's captured, and passes the rest through to
+ * another channel. Audio is analysed in short windows against an energy threshold that adapts to
+ * the room: anything well above the quietest window heard so far counts as sound. Until a quiet
+ * window has been heard, a fixed threshold is used instead, so a take that starts loud is kept.
+ *
+ * <p>The take starts at the last zero crossing before the first sound, and ends at the last zero
+ * crossing in a short release after the last sound, so that a take that's looped doesn't click
+ * at the seam. Since the end isn't known until the take is closed, quiet stretches are held back
+ * until either more sound arrives or the channel is closed.
+ */
+public class SilenceTrimmer implements WritableByteChannel {
+
+    private static final int WINDOW_MILLIS = 10;
+    // Keep a little of the decay after the last sound, so notes aren't cut off mid-ring.
+    private static final int RELEASE_MILLIS = 60;
+    // Quiet stretches longer than this are let through, which bounds how much we hold in memory.
+    private static final int MAX_HELD_MILLIS = 10000;
+
+    // Around -54 dBFS. Nothing quieter than this ever counts as sound.
+    private static final int MIN_THRESHOLD = 64;
+    // Sound has to be about 12 dB above the quietest window heard so far.
+    private static final int NOISE_FLOOR_RATIO = 4;
+
+    private final WritableByteChannel output;
+    private final int windowFrames;
+    private final int releaseFrames;
+    private final int maxHeldFrames;
+    private final ByteBuffer outputBuffer;
+
+    // The window being filled, and the one before it, which is where the start is snapped to.
+    private short[] window;
+    private short[] previousWindow;
+    private int windowLength = 0;
+    private boolean hasPreviousWindow = false;
+
+    // Once sound has started: the last loud window, followed by everything quiet since.
+    private short[] held;
+    private int heldLength = 0;
+    private int lastLoudStart = 0;
+    private int lastLoudEnd = 0;
+
+    // The quietest window heard so far. Only windows below the threshold ever lower it.
+    private double noiseFloor = 0;
+    private boolean hasNoiseFloor = false;
+    private boolean hasSound = false;
+    private long framesWritten = 0;
+    private int lowByte = -1;
+    private boolean isOpen = true;
+
+    public SilenceTrimmer(WritableByteChannel output, int sampleRateHz) {
+        this.output = output;
+        windowFrames = (int) PcmFormat.millisToFrames(WINDOW_MILLIS, sampleRateHz);
+        releaseFrames = (int) PcmFormat.millisToFrames(RELEASE_MILLIS, sampleRateHz);
+        maxHeldFrames = (int) PcmFormat.millisToFrames(MAX_HELD_MILLIS, sampleRateHz);
+        outputBuffer =
+                ByteBuffer.allocate(windowFrames * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        window = new short[windowFrames];
+        previousWindow = new short[windowFrames];
+        held = new short[windowFrames * 8];
+    }
+
+    /** The number of frames passed through so far. Final once the channel is closed. */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+            int value = source.get() & 0xFF;
+            if (lowByte < 0) {
+                lowByte = value;
+                continue;
+            }
+
+            window[windowLength++] = (short) ((value << 8) | lowByte);
+            lowByte = -1;
+            if (windowLength == windowFrames) {
+                analyseWindow();
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    /** Trims the end of the take, writes out what's left, and closes the output. */
+    @Override
+    public void close() throws IOException {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+
+        if (windowLength > 0) {
+            analyseWindow();
+        }
+        if (hasSound) {
+            // Keep the last sound and a short release, and end on a zero crossing within that.
+            int end = Math.min(heldLength, lastLoudEnd + releaseFrames);
+            int snappedEnd = findZeroCrossing(held, lastLoudStart, end);
+            emit(held, 0, snappedEnd >= 0 ? snappedEnd : end);
+        }
+        output.close();
+    }
+
+    // ------- Analysis -------
+
+    private void analyseWindow() throws IOException {
+        double rms = rms(window, windowLength);
+        double threshold =
+                hasNoiseFloor
+                        ? Math.max(MIN_THRESHOLD, noiseFloor * NOISE_FLOOR_RATIO)
+                        : MIN_THRESHOLD;
+        boolean isLoud = rms > threshold;
+        if (!isLoud) {
+            noiseFloor = hasNoiseFloor ? Math.min(noiseFloor, rms) : rms;
+            hasNoiseFloor = true;
+        }
+
+        if (!hasSound) {
+            if (isLoud) {
+                startSound(threshold);
+            }
+        } else {
+            hold(window, 0, windowLength);
+            if (isLoud) {
+                // Everything before this window is definitely part of the take now.
+                int loudStart = heldLength - windowLength;
+                emit(held, 0, loudStart);
+                System.arraycopy(held, loudStart, held, 0, windowLength);
+                heldLength = windowLength;
+                lastLoudStart = 0;
+                lastLoudEnd = windowLength;
+            } else if (heldLength > maxHeldFrames) {
+                // A long pause. Let the oldest of it through rather than holding on forever.
+                int excess = heldLength - maxHeldFrames;
+                emit(held, 0, excess);
+                System.arraycopy(held, excess, held, 0, heldLength - excess);
+                heldLength -= excess;
+                lastLoudStart = Math.max(0, lastLoudStart - excess);
+                lastLoudEnd = Math.max(0, lastLoudEnd - excess);
+            }
+        }
+
+        short[] swap = previousWindow;
+        previousWindow = window;
+        window = swap;
+        hasPreviousWindow = true;
+        windowLength = 0;
+    }
+
+    /** Starts the take at the last zero crossing before the first frame above the threshold. */
+    private void startSound(double threshold) {
+        hasSound = true;
+
+        int onset = 0;
+        while (onset < windowLength && Math.abs(window[onset]) <= threshold) {
+            onset++;
+        }
+
+        // Search back from the onset, through the previous window if need be.
+        int lookback = hasPreviousWindow ? windowFrames : 0;
+        short[] combined = new short[lookback + windowLength];
+        if (lookback > 0) {
+            System.arraycopy(previousWindow, 0, combined, 0, lookback);
+        }
+        System.arraycopy(window, 0, combined, lookback, windowLength);
+        int start = findZeroCrossing(combined, 0, lookback + onset + 1);
+
+        hold(combined, Math.max(0, start), combined.length);
+        lastLoudStart = heldLength - windowLength;
+        lastLoudEnd = heldLength;
+    }
+
+    private void hold(short[] frames, int from, int to) {
+        int length = to - from;
+        if (heldLength + length > held.length) {
+            short[] newHeld = new short[Math.max(held.length * 2, heldLength + length)];
+            System.arraycopy(held, 0, newHeld, 0, heldLength);
+            held = newHeld;
+        }
+        System.arraycopy(frames, from, held, heldLength, length);
+        heldLength += length;
+    }
+
+    private void emit(short[] frames, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            outputBuffer.putShort(frames[i]);
+            if (!outputBuffer.hasRemaining()) {
+                flushOutput();
+            }
+        }
+        flushOutput();
+        framesWritten += Math.max(0, to - from);
+    }
+
+    private void flushOutput() throws IOException {
+        outputBuffer.flip();
+        while (outputBuffer.hasRemaining()) {
+            output.write(outputBuffer);
+        }
+        outputBuffer.clear();
+    }
+
+    /**
+     * Finds the last frame in {@code [from, to)} that starts a zero crossing, meaning it's zero or
+     * has the opposite sign to the frame before it.
+     *
+     * @return the frame, or -1 if there's no crossing in that range
+     */
+    private static int findZeroCrossing(short[] frames, int from, int to) {
+        for (int i = Math.min(to, frames.length) - 1; i > from; i--) {
+            if (frames[i] == 0 || (frames[i] < 0) != (frames[i - 1] < 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static double rms(short[] frames, int length) {
+        long sumOfSquares = 0;
+        for (int i = 0; i < length; i++) {
+            sumOfSquares += frames[i] * frames[i];
+        }
+        return length == 0 ? 0 : Math.sqrt((double) sumOfSquares / length);
+    }
+}
@@ -0,0 +1,77 @@
+package com.alexkang.loopboard.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded first-in, first-out queue for exactly one producer thread and one consumer thread.
+ * Neither side ever locks, blocks or allocates: each owns one end of a fixed ring, and only
+ * publishes its own position for the other to read.
+ */
+public class SpscQueue<E> {
+
+    private final Object[] elements;
+    private final int mask;
+
+    // The next slot to poll, written only by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // The next slot to offer into, written only by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Creates a queue that holds at least {@code capacity} elements. */
+    public SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        elements = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the back of the queue. Only call this from the producer thread.
+     *
+     * @return false if the queue is full, in which case nothing was added
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long currentTail = tail.get();
+        if (currentTail - head.get() == elements.length) {
+            return false;
+        }
+        elements[(int) currentTail & mask] = element;
+        // Publishes the element along with the new tail.
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Removes the element at the front of the queue. Only call this from the consumer thread.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = (int) currentHead & mask;
+        E element = (E) elements[index];
+        elements[index] = null;
+        head.lazySet(currentHead + 1);
+        return element;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int getCapacity() {
+        return elements.length;
+    }
+}
@@ -0,0 +1,78 @@
+package com.alexkang.loopboard.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes 16-bit stereo PCM to a WAV file. The length is fixed up front, so the header goes out
+ * first and each block is written straight to its own place in the file. Blocks can arrive in any
+ * order, from any number of threads at once.
+ */
+public class WavWriter implements Closeable {
+
+    private static final int HEADER_BYTES = 44;
+    private static final int FORMAT_CHUNK_BYTES = 16;
+    private static final short FORMAT_PCM = 1;
+    private static final short BITS_PER_SAMPLE = 16;
+    // The RIFF size field is 32 bits, and counts everything after itself.
+    private static final long MAX_DATA_BYTES = 0xffffffffL - (HEADER_BYTES - 8);
+
+    private final FileChannel channel;
+    private final long frameCount;
+
+    /** @param frameCount how many stereo frames the file will hold, all told */
+    public WavWriter(FileChannel channel, int sampleRateHz, long frameCount) throws IOException {
+        long dataBytes = frameCount * PcmFormat.BYTES_PER_OUTPUT_FRAME;
+        if (frameCount < 0 || dataBytes > MAX_DATA_BYTES) {
+            throw new IllegalArgumentException("Too long for a WAV file: " + frameCount);
+        }
+        this.channel = channel;
+        this.frameCount = frameCount;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952); // "RIFF"
+        header.putInt((int) (dataBytes + HEADER_BYTES - 8));
+        header.putInt(0x45564157); // "WAVE"
+        header.putInt(0x20746d66); // "fmt "
+        header.putInt(FORMAT_CHUNK_BYTES);
+        header.putShort(FORMAT_PCM);
+        header.putShort((short) PcmFormat.OUTPUT_CHANNEL_COUNT);
+        header.putInt(sampleRateHz);
+        header.putInt(sampleRateHz * PcmFormat.BYTES_PER_OUTPUT_FRAME);
+        header.putShort((short) PcmFormat.BYTES_PER_OUTPUT_FRAME);
+        header.putShort(BITS_PER_SAMPLE);
+        header.putInt(0x61746164); // "data"
+        header.putInt((int) dataBytes);
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Writes the rest of a block of interleaved little-endian frames, starting at the given frame
+     * of the file.
+     */
+    public void write(long frame, ByteBuffer block) throws IOException {
+        if (frame + block.remaining() / PcmFormat.BYTES_PER_OUTPUT_FRAME > frameCount) {
+            throw new IllegalArgumentException("Block runs past the end of the file");
+        }
+        writeFully(block, HEADER_BYTES + frame * PcmFormat.BYTES_PER_OUTPUT_FRAME);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.alexkang.loopboard.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/** A pack must open to exactly the samples that were last put in it, byte for byte. */
+public class BoardPackTest {
+
+    private static final int SLOT_COUNT = 4;
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void opensToTheLiveEntries() throws IOException {
+        File file = File.createTempFile("board", ".pack");
+        try {
+            // Keyed by name, what the pack should hold once everything below is done.
+            Map<String, Payload> expected = new HashMap<>();
+
+            BoardPack.Writer writer = new BoardPack.Writer(file, SLOT_COUNT);
+            try {
+                put(writer, expected, "kick", 1000, 40);
+                put(writer, expected, "snare", 800, 32);
+                put(writer, expected, "hat", 300, 12);
+            } finally {
+                writer.close();
+            }
+
+            // A new writer works from what the last one left on disk.
+            writer = new BoardPack.Writer(file, SLOT_COUNT);
+            try {
+                // Too big for the room it had, so it moves to the end of the pack.
+                put(writer, expected, "kick", 5000, 200);
+                // Small enough to be rewritten in place.
+                put(writer, expected, "snare", 100, 4);
+                writer.remove("hat");
+                expected.remove("hat");
+                // Moves into the room the removed sample left behind.
+                put(writer, expected, "clap", 200, 8);
+                // Marked stale, as if its rewrite never finished.
+                writer.put(
+                        new BoardPack.Entry(
+                                "ride", BoardPack.FORMAT_RAW_PCM, 48000, 0, -1, -1, 1234),
+                        createBytes(400),
+                        createBytes(16));
+            } finally {
+                writer.close();
+            }
+
+            BoardPack pack = BoardPack.open(file);
+            assertEquals(expected.size(), pack.getEntries().size());
+            for (BoardPack.Entry entry : pack.getEntries()) {
+                Payload payload = expected.get(entry.getName());
+                assertTrue("unexpected " + entry.getName(), payload != null);
+                assertEquals(BoardPack.FORMAT_SAMPLE_CODEC, entry.getFormat());
+                assertEquals(44100, entry.getSampleRateHz());
+                assertEquals(payload.audio.remaining(), entry.getLoopEndFrame());
+                assertEquals(payload.audio.remaining() * 2L, entry.getSourceLength());
+                assertEquals(payload.audio, pack.getAudio(entry));
+                assertEquals(payload.peaks, pack.getPeaks(entry));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // ------- Private methods -------
+
+    private void put(
+            BoardPack.Writer writer,
+            Map<String, Payload> expected,
+            String name,
+            int audioBytes,
+            int peakBytes) throws IOException {
+        Payload payload = new Payload(createBytes(audioBytes), createBytes(peakBytes));
+        writer.put(
+                new BoardPack.Entry(
+                        name,
+                        BoardPack.FORMAT_SAMPLE_CODEC,
+                        44100,
+                        0,
+                        audioBytes,
+                        audioBytes * 2L,
+                        random.nextLong()),
+                payload.audio,
+                payload.peaks);
+        expected.put(name, payload);
+    }
+
+    private ByteBuffer createBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static class Payload {
+
+        private final ByteBuffer audio;
+        private final ByteBuffer peaks;
+
+        private Payload(ByteBuffer audio, ByteBuffer peaks) {
+            this.audio = audio;
+            this.peaks = peaks;
+        }
+    }
+}
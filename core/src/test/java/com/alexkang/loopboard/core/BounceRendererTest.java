@@ -0,0 +1,88 @@
+package com.alexkang.loopboard.core;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/** A bounce split into ranges must come out the same as one rendered in a single pass. */
+public class BounceRendererTest {
+
+    private static final int SAMPLE_RATE_HZ = 44100;
+    private static final int BLOCK_FRAMES = 8192;
+    private static final int GRAIN_FRAMES = 1323;
+    private static final int BOUNCE_FRAMES = 200000;
+    private static final int RANGE_COUNT = 4;
+
+    @Test
+    public void splitRangesMatchOnePass() throws IOException {
+        // The source moves a fraction of a frame further each grain at all of these speeds.
+        for (float speed : new float[] {1.3f, 0.7f, 1.5f}) {
+            List<BounceRenderer.Track> tracks = new ArrayList<>();
+            tracks.add(
+                    new BounceRenderer.Track(
+                            createStream(30011),
+                            new EffectSettings(1, 0, 20, 20000, 3, speed),
+                            1234));
+            tracks.add(
+                    new BounceRenderer.Track(
+                            createStream(17389),
+                            new EffectSettings(0.5f, 0.5f, 20, 20000, 0, 1),
+                            0));
+
+            byte[] onePass = bounce(tracks, 1);
+            byte[] split = bounce(tracks, RANGE_COUNT);
+            assertArrayEquals(String.format(Locale.ENGLISH, "speed %.1f", speed), onePass, split);
+        }
+    }
+
+    // ------- Private methods -------
+
+    private static byte[] bounce(List<BounceRenderer.Track> tracks, int rangeCount)
+            throws IOException {
+        File file = File.createTempFile("bounce", ".wav");
+        try {
+            WavWriter writer =
+                    new WavWriter(
+                            new RandomAccessFile(file, "rw").getChannel(),
+                            SAMPLE_RATE_HZ,
+                            BOUNCE_FRAMES);
+            try {
+                for (int i = 0; i < rangeCount; i++) {
+                    new BounceRenderer(tracks, SAMPLE_RATE_HZ, BLOCK_FRAMES, GRAIN_FRAMES)
+                            .render(
+                                    (long) BOUNCE_FRAMES * i / rangeCount,
+                                    (long) BOUNCE_FRAMES * (i + 1) / rangeCount,
+                                    writer);
+                }
+            } finally {
+                writer.close();
+            }
+            return Files.readAllBytes(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static PcmStream createStream(int frameCount) {
+        ByteBuffer pcm =
+                ByteBuffer.allocate(frameCount * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            pcm.putShort((short) (6000 * Math.sin(i * 0.03) + 2000 * random.nextGaussian()));
+        }
+        pcm.flip();
+        return new RawPcmStream(pcm.asShortBuffer());
+    }
+}
@@ -0,0 +1,82 @@
+package com.alexkang.loopboard.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Random;
+
+/** The converted audio mustn't depend on how the input was split up into writes. */
+public class PolyphaseResamplerTest {
+
+    private static final int[][] RATE_PAIRS = {
+        {44100, 48000},
+        {22050, 48000},
+        {44100, 96000},
+        {8000, 48000},
+        {48000, 44100},
+    };
+    private static final int[] CHUNK_FRAMES = {1, 7, 4097};
+    private static final int INPUT_FRAMES = 20000;
+
+    @Test
+    public void chunkedWritesMatchOneWrite() throws IOException {
+        ByteBuffer input = createInput();
+        for (int[] rates : RATE_PAIRS) {
+            byte[] expected = resample(input, rates[0], rates[1], INPUT_FRAMES);
+            assertTrue(expected.length > 0);
+            for (int chunkFrames : CHUNK_FRAMES) {
+                String message =
+                        String.format(
+                                Locale.ENGLISH,
+                                "%d to %d Hz, %d frames at a time",
+                                rates[0],
+                                rates[1],
+                                chunkFrames);
+                assertArrayEquals(
+                        message,
+                        expected,
+                        resample(input, rates[0], rates[1], chunkFrames));
+            }
+        }
+    }
+
+    private static byte[] resample(
+            ByteBuffer input, int inputRateHz, int outputRateHz, int chunkFrames)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PolyphaseResampler resampler =
+                new PolyphaseResampler(Channels.newChannel(output), inputRateHz, outputRateHz);
+        ByteBuffer source = input.duplicate();
+        int chunkBytes = chunkFrames * PcmFormat.BYTES_PER_FRAME;
+        while (source.hasRemaining()) {
+            ByteBuffer chunk = source.slice();
+            chunk.limit(Math.min(chunkBytes, source.remaining()));
+            source.position(source.position() + chunk.limit());
+            resampler.write(chunk);
+        }
+        resampler.close();
+        return output.toByteArray();
+    }
+
+    /** A tone with some noise on it, so every tap of the filter matters. */
+    private static ByteBuffer createInput() {
+        ByteBuffer input =
+                ByteBuffer.allocate(INPUT_FRAMES * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(1);
+        for (int i = 0; i < INPUT_FRAMES; i++) {
+            double value = 12000 * Math.sin(i * 0.03) + 2000 * random.nextGaussian();
+            input.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+        }
+        input.flip();
+        return input;
+    }
+}
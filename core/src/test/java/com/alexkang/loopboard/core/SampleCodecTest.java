@@ -0,0 +1,133 @@
+package com.alexkang.loopboard.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Encoding and decoding must give back exactly the frames that went in. */
+public class SampleCodecTest {
+
+    private static final int SAMPLE_RATE_HZ = 48000;
+    private static final int[] FRAME_COUNTS = {
+        0, 1, SampleCodec.BLOCK_SIZE - 1, SampleCodec.BLOCK_SIZE, SampleCodec.BLOCK_SIZE + 1
+    };
+
+    @Test
+    public void roundTripsAcrossBlockBoundaries() throws IOException {
+        for (int frameCount : FRAME_COUNTS) {
+            short[] frames = createTone(frameCount);
+            ByteBuffer file = encode(frames, frameCount + 1);
+            assertTrue(SampleCodec.isEncoded(file));
+            assertEquals(SAMPLE_RATE_HZ, SampleCodec.getSampleRate(file));
+            assertArrayEquals("frame count " + frameCount, frames, decode(file));
+        }
+    }
+
+    @Test
+    public void roundTripsFullScaleInput() throws IOException {
+        // Alternating extremes leave residuals far too big to Rice code, forcing the escape path.
+        short[] alternating = new short[SampleCodec.BLOCK_SIZE * 2 + 17];
+        for (int i = 0; i < alternating.length; i++) {
+            alternating[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        assertArrayEquals(alternating, decode(encode(alternating, alternating.length)));
+
+        short[] noise = new short[SampleCodec.BLOCK_SIZE * 2 + 17];
+        Random random = new Random(1);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (short) random.nextInt();
+        }
+        assertArrayEquals(noise, decode(encode(noise, noise.length)));
+    }
+
+    @Test
+    public void chunkedWritesMatchOneWrite() throws IOException {
+        short[] frames = createTone(SampleCodec.BLOCK_SIZE * 3 + 5);
+        ByteBuffer expected = encode(frames, frames.length);
+        // Odd sizes split frames between writes, so a frame's two bytes arrive separately.
+        for (int chunkBytes : new int[] {1, 3, 1001}) {
+            assertEquals(expected, encodeInBytes(frames, chunkBytes));
+        }
+    }
+
+    @Test
+    public void seeksToAnyFrame() throws IOException {
+        short[] frames = createTone(SampleCodec.BLOCK_SIZE * 5 + 123);
+        SampleCodec.Decoder decoder = new SampleCodec.Decoder(encode(frames, frames.length));
+        Random random = new Random(2);
+        short[] destination = new short[SampleCodec.BLOCK_SIZE + 500];
+        for (int i = 0; i < 200; i++) {
+            int frame = random.nextInt(frames.length + 1);
+            decoder.seek(frame);
+            assertEquals(frame, decoder.getPosition());
+
+            int framesRead = decoder.read(destination, 0, destination.length);
+            int expectedLength = Math.min(destination.length, frames.length - frame);
+            assertEquals(expectedLength, framesRead);
+            assertArrayEquals(
+                    "seek to " + frame,
+                    Arrays.copyOfRange(frames, frame, frame + expectedLength),
+                    Arrays.copyOf(destination, framesRead));
+        }
+    }
+
+    // ------- Private methods -------
+
+    private static ByteBuffer encode(short[] frames, int chunkFrames) throws IOException {
+        return encodeInBytes(frames, Math.max(1, chunkFrames) * PcmFormat.BYTES_PER_FRAME);
+    }
+
+    private static ByteBuffer encodeInBytes(short[] frames, int chunkBytes) throws IOException {
+        ByteBuffer input =
+                ByteBuffer.allocate(frames.length * PcmFormat.BYTES_PER_FRAME)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        input.asShortBuffer().put(frames);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SampleCodec.Encoder encoder =
+                new SampleCodec.Encoder(Channels.newChannel(output), SAMPLE_RATE_HZ);
+        while (input.hasRemaining()) {
+            ByteBuffer chunk = input.slice();
+            chunk.limit(Math.min(chunkBytes, input.remaining()));
+            input.position(input.position() + chunk.limit());
+            encoder.write(chunk);
+        }
+        encoder.close();
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    private static short[] decode(ByteBuffer file) {
+        SampleCodec.Decoder decoder = new SampleCodec.Decoder(file);
+        short[] frames = new short[decoder.getFrameCount()];
+        int filled = 0;
+        while (filled < frames.length) {
+            int framesRead = decoder.read(frames, filled, frames.length - filled);
+            if (framesRead == 0) {
+                break;
+            }
+            filled += framesRead;
+        }
+        assertEquals(frames.length, filled);
+        return frames;
+    }
+
+    /** A tone with some noise on it, like a quiet recording. */
+    private static short[] createTone(int frameCount) {
+        short[] frames = new short[frameCount];
+        Random random = new Random(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = (short) (8000 * Math.sin(i * 0.02) + 300 * random.nextGaussian());
+        }
+        return frames;
+    }
+}